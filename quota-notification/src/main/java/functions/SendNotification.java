@@ -53,13 +53,16 @@ public class SendNotification implements BackgroundFunction<PubSubMessage> {
 
   private static final Logger logger = Logger.getLogger(SendNotification.class.getName());
 
+  // BigQuery client shared by all requests on this instance, it is thread-safe
+  private static BigQuery bigQuery;
+
   /*
    * API to accept notification information and process it
    * */
   @Override
   public void accept(PubSubMessage message, Context context) {
-    // Initialize client that will be used to send requests
-    BigQuery bigquery = BigQueryOptions.getDefaultInstance().getService();
+    // Get the client that will be used to send requests
+    BigQuery bigquery = getBigQuery();
     // logger.info(String.format(message.getEmailIds()));
     logger.info("Successfully made it to sendNotification");
     // get rows from quota_monitoring_notification_table
@@ -71,12 +74,21 @@ public class SendNotification implements BackgroundFunction<PubSubMessage> {
     return;
   }
 
+  /*
+   * API to get the shared BigQuery client, creating it if needed
+   * */
+  private static synchronized BigQuery getBigQuery() {
+    if (bigQuery == null) {
+      bigQuery = BigQueryOptions.getDefaultInstance().getService();
+    }
+    return bigQuery;
+  }
+
   /*
    * API to fetch records which qualifies for alerting from the main table
    * */
   private static List<Alert> browseAlertTable(BigQuery bigquery) {
-    List<Alert> alerts = new ArrayList();
-    Alert alert = new Alert();
+    List<Alert> alerts = new ArrayList<>();
     try {
 
       QueryJobConfiguration queryConfig =
@@ -112,7 +124,7 @@ public class SendNotification implements BackgroundFunction<PubSubMessage> {
       // Get all pages of the results
       for (FieldValueList row : result.iterateAll()) {
         // Get all values
-        alert = new Alert();
+        Alert alert = new Alert();
         alert.setProjectId(row.get("project_id").getStringValue());
         alert.setRegion(row.get("region").getStringValue());
         alert.setQuotaMetric(row.get("quota_metric").getStringValue());
@@ -0,0 +1,194 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.monitoring.v3.QueryServiceClient;
+import com.google.cloud.monitoring.v3.QueryServiceSettings;
+import com.google.monitoring.v3.QueryServiceGrpc;
+import com.google.monitoring.v3.QueryTimeSeriesRequest;
+import com.google.monitoring.v3.QueryTimeSeriesResponse;
+import com.google.protobuf.util.JsonFormat;
+import functions.SyntheticResponses.Shape;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * In-process stand-in for the Cloud Monitoring QueryService. Each query is answered with
+ * the pages of the response shape its MQL asks for, either generated by SyntheticResponses
+ * or recorded from a real scan, after an injected latency. The same pages are served for
+ * every project. RPCs and response bytes are counted.
+ * */
+public class FakeQueryService extends QueryServiceGrpc.QueryServiceImplBase implements AutoCloseable {
+  private final Map<Shape, List<QueryTimeSeriesResponse>> responses;
+  private final long latencyMs;
+  private final ScheduledExecutorService delayExecutor = Executors.newScheduledThreadPool(4);
+
+  private final AtomicLong rpcCount = new AtomicLong();
+  private final AtomicLong responseBytes = new AtomicLong();
+
+  private Server server;
+  private ManagedChannel channel;
+  private QueryServiceClient client;
+
+  private FakeQueryService(Map<Shape, List<QueryTimeSeriesResponse>> responses, long latencyMs) {
+    this.responses = responses;
+    this.latencyMs = latencyMs;
+  }
+
+  /*
+   * API to create a fake serving generated series of every shape
+   * */
+  public static FakeQueryService generated(int seriesCount, int pageSize, long latencyMs) {
+    Map<Shape, List<QueryTimeSeriesResponse>> responses = new EnumMap<>(Shape.class);
+    for (Shape shape : Shape.values()) {
+      responses.put(shape, SyntheticResponses.pages(shape, seriesCount, pageSize));
+    }
+    return new FakeQueryService(responses, latencyMs);
+  }
+
+  /*
+   * API to create a fake serving recorded responses. Each file holds the pages of one shape,
+   * one QueryTimeSeriesResponse in JSON format per line, named after the shape, e.g. QPD.json.
+   * Shapes without a recording are generated.
+   * */
+  public static FakeQueryService recorded(Path directory, int seriesCount, int pageSize, long latencyMs)
+      throws IOException {
+    FakeQueryService fake = generated(seriesCount, pageSize, latencyMs);
+    for (Shape shape : Shape.values()) {
+      Path recording = directory.resolve(shape.name() + ".json");
+      if (!Files.exists(recording)) {
+        continue;
+      }
+      List<QueryTimeSeriesResponse> pages = new ArrayList<>();
+      try (BufferedReader reader = Files.newBufferedReader(recording, StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.isBlank()) {
+            continue;
+          }
+          QueryTimeSeriesResponse.Builder page = QueryTimeSeriesResponse.newBuilder();
+          JsonFormat.parser().ignoringUnknownFields().merge(line, page);
+          // Link the recorded pages with the tokens the fake understands
+          if (!pages.isEmpty()) {
+            int previous = pages.size() - 1;
+            pages.set(
+                previous,
+                pages.get(previous).toBuilder().setNextPageToken("page-" + pages.size()).build());
+          }
+          pages.add(page.setNextPageToken("").build());
+        }
+      }
+      fake.responses.put(shape, pages);
+    }
+    return fake;
+  }
+
+  /*
+   * API to start the in-process server and get a client connected to it
+   * */
+  public synchronized QueryServiceClient start() throws IOException {
+    String name = InProcessServerBuilder.generateName();
+    server =
+        InProcessServerBuilder.forName(name).addService(this).executor(delayExecutor).build().start();
+    channel = InProcessChannelBuilder.forName(name).build();
+    client =
+        QueryServiceClient.create(
+            QueryServiceSettings.newBuilder()
+                .setTransportChannelProvider(
+                    FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)))
+                .setCredentialsProvider(NoCredentialsProvider.create())
+                .build());
+    return client;
+  }
+
+  @Override
+  public void queryTimeSeries(
+      QueryTimeSeriesRequest request, StreamObserver<QueryTimeSeriesResponse> responseObserver) {
+    rpcCount.incrementAndGet();
+    List<QueryTimeSeriesResponse> pages = responses.get(shapeOf(request.getQuery()));
+    int index = SyntheticResponses.pageIndex(request.getPageToken());
+    if (index >= pages.size()) {
+      responseObserver.onError(
+          Status.INVALID_ARGUMENT.withDescription("Unknown page token").asRuntimeException());
+      return;
+    }
+    QueryTimeSeriesResponse page = pages.get(index);
+    responseBytes.addAndGet(page.getSerializedSize());
+    delayExecutor.schedule(
+        () -> {
+          responseObserver.onNext(page);
+          responseObserver.onCompleted();
+        },
+        latencyMs,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * API to map the MQL of a scan query to the response shape it produces
+   * */
+  static Shape shapeOf(String mql) {
+    if (mql.contains("quota/allocation")) {
+      return Shape.ALLOCATION;
+    }
+    if (mql.contains("daily:")) {
+      return Shape.QPD;
+    }
+    if (mql.contains("every 1s")) {
+      return Shape.QPS;
+    }
+    return mql.contains("within 1w") ? Shape.QPM : Shape.QPM_REDUCED;
+  }
+
+  public long getRpcCount() {
+    return rpcCount.get();
+  }
+
+  public long getResponseBytes() {
+    return responseBytes.get();
+  }
+
+  @Override
+  public synchronized void close() throws InterruptedException {
+    if (client != null) {
+      client.close();
+    }
+    if (channel != null) {
+      channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+    if (server != null) {
+      server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+    delayExecutor.shutdownNow();
+  }
+}
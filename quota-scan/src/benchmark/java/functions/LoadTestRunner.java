@@ -0,0 +1,117 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import functions.eventpojos.PubSubMessage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Drives ScanProjectQuotas.accept against FakeQueryService and reports projects/sec,
+ * QueryService RPCs, response bytes, rows written and scan latency percentiles. Nothing is
+ * sent to Cloud Monitoring or BigQuery. Options are system properties:
+ *
+ * loadtest.projects     number of scans, default 200
+ * loadtest.concurrency  concurrent scans, default 16
+ * loadtest.series       series per query response, default 500
+ * loadtest.pageSize     series per response page, default 1000
+ * loadtest.latencyMs    latency injected per RPC, default 100
+ * loadtest.recordings   directory of recorded responses, see FakeQueryService.recorded
+ *
+ * Run it through the benchmark profile, see quota-scan/pom.xml.
+ * */
+public class LoadTestRunner {
+
+  public static void main(String[] args) throws Exception {
+    int projects = Integer.getInteger("loadtest.projects", 200);
+    int concurrency = Integer.getInteger("loadtest.concurrency", 16);
+    int series = Integer.getInteger("loadtest.series", 500);
+    int pageSize = Integer.getInteger("loadtest.pageSize", 1000);
+    long latencyMs = Long.getLong("loadtest.latencyMs", 100L);
+    String recordings = System.getProperty("loadtest.recordings");
+
+    CountingSink sink = new CountingSink();
+    try (FakeQueryService fake =
+        recordings == null
+            ? FakeQueryService.generated(series, pageSize, latencyMs)
+            : FakeQueryService.recorded(Paths.get(recordings), series, pageSize, latencyMs)) {
+      QueryServiceClientHolder.setQueryServiceClient(fake.start());
+      ScanProjectQuotasHelper.setSink(sink);
+
+      ScanProjectQuotas function = new ScanProjectQuotas();
+      ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+      List<Future<Long>> scans = new ArrayList<>();
+      long start = System.nanoTime();
+      for (int i = 0; i < projects; i++) {
+        PubSubMessage message = new PubSubMessage();
+        message.setData(
+            Base64.getEncoder().encodeToString(("load-test-" + i).getBytes(StandardCharsets.UTF_8)));
+        scans.add(
+            executor.submit(
+                () -> {
+                  long scanStart = System.nanoTime();
+                  function.accept(message, null);
+                  return System.nanoTime() - scanStart;
+                }));
+      }
+      long[] latencies = new long[projects];
+      for (int i = 0; i < projects; i++) {
+        latencies[i] = scans.get(i).get();
+      }
+      double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+      executor.shutdown();
+
+      Arrays.sort(latencies);
+      System.out.printf("Projects scanned:   %d in %.2f s%n", projects, elapsedSeconds);
+      System.out.printf("Projects/sec:       %.1f%n", projects / elapsedSeconds);
+      System.out.printf("QueryService RPCs:  %d%n", fake.getRpcCount());
+      System.out.printf("Response bytes:     %d%n", fake.getResponseBytes());
+      System.out.printf("Rows written:       %d%n", sink.rows.get());
+      System.out.printf("Scan latency p50:   %.1f ms%n", percentile(latencies, 0.50) / 1e6);
+      System.out.printf("Scan latency p99:   %.1f ms%n", percentile(latencies, 0.99) / 1e6);
+    } finally {
+      QueryServiceClientHolder.setQueryServiceClient(null);
+      ScanProjectQuotasHelper.setSink(null);
+    }
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+
+  /*
+   * Sink that only counts the rows it receives
+   * */
+  static class CountingSink implements ProjectQuotaSink {
+    final AtomicLong rows = new AtomicLong();
+
+    @Override
+    public void write(ProjectQuotaBatch batch) {
+      rows.addAndGet(batch.size());
+      batch.recordRowsWritten(batch.size());
+    }
+  }
+}
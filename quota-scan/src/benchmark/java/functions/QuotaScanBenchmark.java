@@ -0,0 +1,122 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.cloud.Timestamp;
+import com.google.monitoring.v3.QueryTimeSeriesResponse;
+import com.google.monitoring.v3.TimeSeriesData;
+import com.google.monitoring.v3.TimeSeriesDescriptor;
+import functions.SyntheticResponses.Shape;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Benchmarks of the per series work of a scan: compiling the response descriptor, decoding
+ * the pages of a query response into a batch, aggregating QPD daily sums, and building the
+ * insertAll and Storage Write API rows. Run with -prof gc to get the allocation rate.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QuotaScanBenchmark {
+  private static final int PAGE_SIZE = 1000;
+
+  @Param({"ALLOCATION", "QPM", "QPM_REDUCED", "QPS", "QPD"})
+  public Shape shape;
+
+  @Param({"100", "2000"})
+  public int seriesCount;
+
+  private TimeSeriesDescriptor descriptor;
+  private List<QueryTimeSeriesResponse> pages;
+  private ProjectQuotaBatch decoded;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    descriptor = SyntheticResponses.descriptor(shape);
+    pages = SyntheticResponses.pages(shape, seriesCount, PAGE_SIZE);
+    decoded = decodePages();
+  }
+
+  @Benchmark
+  public TimeSeriesDecoder compileDescriptor() {
+    return TimeSeriesDecoder.compile(descriptor, shape.quota);
+  }
+
+  /*
+   * Decodes every page the way processResponse does for the shape, QPS rows are not
+   * de-duplicated since every generated series has its own key
+   * */
+  @Benchmark
+  public ProjectQuotaBatch decodePages() {
+    TimeSeriesDecoder decoder = TimeSeriesDecoder.compile(descriptor, shape.quota);
+    ProjectQuotaBatch batch =
+        ScanProjectQuotasHelper.createBatch(
+            Timestamp.ofTimeSecondsAndNanos(SyntheticResponses.END_OF_TODAY, 0));
+    for (QueryTimeSeriesResponse page : pages) {
+      for (TimeSeriesData data : page.getTimeSeriesDataList()) {
+        if (shape == Shape.QPD) {
+          long[] values =
+              ScanProjectQuotasHelper.aggregatePerDay(data, decoder, SyntheticResponses.END_OF_TODAY);
+          decoder.decode(data, values[0], values[1], batch);
+        } else {
+          decoder.decode(data, batch);
+        }
+      }
+    }
+    return batch;
+  }
+
+  @Benchmark
+  public void aggregatePerDay(Blackhole blackhole) {
+    TimeSeriesDecoder decoder = TimeSeriesDecoder.compile(descriptor, shape.quota);
+    for (QueryTimeSeriesResponse page : pages) {
+      for (TimeSeriesData data : page.getTimeSeriesDataList()) {
+        blackhole.consume(
+            ScanProjectQuotasHelper.aggregatePerDay(data, decoder, SyntheticResponses.END_OF_TODAY));
+      }
+    }
+  }
+
+  @Benchmark
+  public void createBQRows(Blackhole blackhole) {
+    for (int row = 0; row < decoded.size(); row++) {
+      blackhole.consume(ScanProjectQuotasHelper.createBQRow(decoded, row));
+    }
+  }
+
+  @Benchmark
+  public void encodeStorageWriteRows(Blackhole blackhole) {
+    StorageWriteApiSink.RowEncoder encoder = new StorageWriteApiSink.RowEncoder();
+    for (int row = 0; row < decoded.size(); row++) {
+      blackhole.consume(encoder.encode(decoded, row));
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.api.LabelDescriptor;
+import com.google.api.MetricDescriptor;
+import com.google.monitoring.v3.LabelValue;
+import com.google.monitoring.v3.QueryTimeSeriesResponse;
+import com.google.monitoring.v3.TimeInterval;
+import com.google.monitoring.v3.TimeSeriesData;
+import com.google.monitoring.v3.TimeSeriesData.PointData;
+import com.google.monitoring.v3.TimeSeriesDescriptor;
+import com.google.monitoring.v3.TypedValue;
+import com.google.protobuf.Timestamp;
+import functions.ScanProjectQuotasHelper.Quotas;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Generates QueryTimeSeriesResponse pages shaped like the responses of the scan queries.
+ * Label values repeat the way they do in real projects: a few projects and regions, a few
+ * dozen quota metrics and limit names per metric. Values are deterministic.
+ * */
+final class SyntheticResponses {
+  // Day the QPD points are generated for, END_OF_TODAY matches getPerDayQuota
+  static final LocalDate TODAY = LocalDate.of(2023, 1, 31);
+  static final long END_OF_TODAY =
+      ZonedDateTime.of(TODAY, LocalTime.MAX, ZoneId.of("UTC")).toEpochSecond();
+
+  private static final String[] REGIONS = {"global", "us-central1", "us-east1", "europe-west1", "asia-east1"};
+  private static final String[] SERVICES = {"compute.googleapis.com", "bigquery.googleapis.com", "pubsub.googleapis.com"};
+  private static final int PROJECTS = 10;
+  private static final int METRICS = 40;
+  private static final int LIMITS_PER_METRIC = 3;
+
+  /*
+   * Query response shapes. The full resolution shapes keep the labels the reduced queries
+   * project away, QPM keeps one day of one minute points to bound the heap of the benchmark.
+   * */
+  enum Shape {
+    ALLOCATION(Quotas.ALLOCATION, false, 2, 604800, "current", "maximum", "limit"),
+    QPM(Quotas.RATE, false, 1440, 60, "current", "maximum", "limit"),
+    QPM_REDUCED(Quotas.RATE, true, 5, 60, "current", "maximum", "limit"),
+    QPS(Quotas.RATE, true, 300, 1, "current", "maximum", "limit"),
+    QPD(Quotas.RATE, true, 7, 86400, "daily", "limit");
+
+    final Quotas quota;
+    final boolean reduced;
+    final int points;
+    final long stepSeconds;
+    final String[] values;
+
+    Shape(Quotas quota, boolean reduced, int points, long stepSeconds, String... values) {
+      this.quota = quota;
+      this.reduced = reduced;
+      this.points = points;
+      this.stepSeconds = stepSeconds;
+      this.values = values;
+    }
+  }
+
+  private SyntheticResponses() {}
+
+  static TimeSeriesDescriptor descriptor(Shape shape) {
+    TimeSeriesDescriptor.Builder descriptor = TimeSeriesDescriptor.newBuilder();
+    for (String key : labelKeys(shape)) {
+      descriptor.addLabelDescriptors(LabelDescriptor.newBuilder().setKey(key));
+    }
+    for (String key : shape.values) {
+      descriptor.addPointDescriptors(
+          TimeSeriesDescriptor.ValueDescriptor.newBuilder()
+              .setKey(key)
+              .setValueType(MetricDescriptor.ValueType.INT64)
+              .setMetricKind(MetricDescriptor.MetricKind.GAUGE));
+    }
+    return descriptor.build();
+  }
+
+  /*
+   * API to generate the pages of one query response, every page carries the descriptor
+   * */
+  static List<QueryTimeSeriesResponse> pages(Shape shape, int seriesCount, int pageSize) {
+    TimeSeriesDescriptor descriptor = descriptor(shape);
+    List<String> labelKeys = labelKeys(shape);
+    Random random = new Random(42);
+    List<QueryTimeSeriesResponse> pages = new ArrayList<>();
+
+    QueryTimeSeriesResponse.Builder page = null;
+    for (int i = 0; i < seriesCount; i++) {
+      if (i % pageSize == 0) {
+        if (page != null) {
+          // Token of the page that follows, see pageIndex
+          pages.add(page.setNextPageToken("page-" + (pages.size() + 1)).build());
+        }
+        page = QueryTimeSeriesResponse.newBuilder().setTimeSeriesDescriptor(descriptor);
+      }
+      page.addTimeSeriesData(series(shape, labelKeys, i, random));
+    }
+    if (page != null) {
+      pages.add(page.build());
+    }
+    return pages;
+  }
+
+  /*
+   * API to get the index of the page a page token refers to, the first page has no token
+   * */
+  static int pageIndex(String pageToken) {
+    return pageToken.isEmpty() ? 0 : Integer.parseInt(pageToken.substring("page-".length()));
+  }
+
+  private static TimeSeriesData series(Shape shape, List<String> labelKeys, int i, Random random) {
+    TimeSeriesData.Builder data = TimeSeriesData.newBuilder();
+    int metric = (i / LIMITS_PER_METRIC) % METRICS;
+    for (String key : labelKeys) {
+      data.addLabelValues(LabelValue.newBuilder().setStringValue(labelValue(key, i, metric)));
+    }
+
+    long limit = 1000L * (1 + metric);
+    long end = shape == Shape.QPD ? END_OF_TODAY : END_OF_TODAY - 3600;
+    for (int p = 0; p < shape.points; p++) {
+      long endTime = end - p * shape.stepSeconds;
+      PointData.Builder point =
+          PointData.newBuilder()
+              .setTimeInterval(
+                  TimeInterval.newBuilder()
+                      .setStartTime(Timestamp.newBuilder().setSeconds(endTime - shape.stepSeconds))
+                      .setEndTime(Timestamp.newBuilder().setSeconds(endTime)));
+      for (String key : shape.values) {
+        long value = key.equals("limit") ? limit : (long) (random.nextDouble() * limit);
+        point.addValues(TypedValue.newBuilder().setInt64Value(value));
+      }
+      data.addPointData(point);
+    }
+    return data.build();
+  }
+
+  private static String labelValue(String key, int i, int metric) {
+    switch (key) {
+      case "resource.project_id":
+        return "quota-project-" + (i % PROJECTS);
+      case "resource.location":
+        return REGIONS[(i / (METRICS * LIMITS_PER_METRIC)) % REGIONS.length];
+      case "resource.service":
+        return SERVICES[metric % SERVICES.length];
+      case "metric.quota_metric":
+        return SERVICES[metric % SERVICES.length] + "/quota_metric_" + metric;
+      case "metric.limit_name":
+        return "Limit" + metric + "PerMinutePerProject" + (i % LIMITS_PER_METRIC);
+      case "metric.method":
+        return "google.api.Method" + (i % 7);
+      default:
+        return key;
+    }
+  }
+
+  private static List<String> labelKeys(Shape shape) {
+    List<String> keys = new ArrayList<>();
+    keys.add("resource.project_id");
+    if (!shape.reduced) {
+      keys.add("resource.service");
+    }
+    keys.add("resource.location");
+    keys.add("metric.quota_metric");
+    keys.add("metric.limit_name");
+    if (shape.quota == Quotas.RATE) {
+      keys.add("metric.method");
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,201 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.bigquery.BigQueryException;
+import io.github.resilience4j.ratelimiter.RateLimiter;
+import io.github.resilience4j.ratelimiter.RateLimiterConfig;
+import io.github.resilience4j.retry.Retry;
+import io.github.resilience4j.retry.RetryConfig;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Token bucket rate limiter shared by all scans on this instance, with AIMD adaptation:
+ * the rate is halved when a call is throttled by the server and grows by one permit per
+ * second after a full second's worth of successful calls, up to the configured rate.
+ * Failed calls that are retryable are retried with exponential backoff and full jitter.
+ * */
+public class AdaptiveRateLimiter {
+  private static final Logger logger = Logger.getLogger(AdaptiveRateLimiter.class.getName());
+
+  // Calls per second to Cloud Monitoring queryTimeSeries from one function instance
+  public static final int MONITORING_QUERY_RATE = EnvironmentConfig.getInt("MONITORING_QUERY_RATE", 10);
+  // Calls per second to BigQuery insertAll from one function instance
+  public static final int BIG_QUERY_INSERT_RATE = EnvironmentConfig.getInt("BIG_QUERY_INSERT_RATE", 50);
+  // Attempts of a throttled or failed call, including the first one
+  public static final int RETRY_MAX_ATTEMPTS = EnvironmentConfig.getInt("RETRY_MAX_ATTEMPTS", 4);
+
+  private static final Duration PERMIT_TIMEOUT = Duration.ofSeconds(60);
+  private static final Duration RETRY_INITIAL_INTERVAL = Duration.ofMillis(500);
+  private static final double RETRY_MULTIPLIER = 2.0;
+  private static final Duration RETRY_MAX_INTERVAL = Duration.ofSeconds(30);
+
+  public static final AdaptiveRateLimiter MONITORING =
+      new AdaptiveRateLimiter(
+          "monitoring-query",
+          MONITORING_QUERY_RATE,
+          AdaptiveRateLimiter::isMonitoringThrottled,
+          AdaptiveRateLimiter::isMonitoringRetryable);
+  public static final AdaptiveRateLimiter BIG_QUERY =
+      new AdaptiveRateLimiter(
+          "bigquery-insert",
+          BIG_QUERY_INSERT_RATE,
+          AdaptiveRateLimiter::isBigQueryThrottled,
+          AdaptiveRateLimiter::isBigQueryRetryable);
+
+  private final String name;
+  private final int maxRate;
+  private final Predicate<Throwable> throttled;
+  private final RateLimiter rateLimiter;
+  private final Retry retry;
+
+  private int rate;
+  private int successes;
+
+  AdaptiveRateLimiter(
+      String name, int maxRate, Predicate<Throwable> throttled, Predicate<Throwable> retryable) {
+    this.name = name;
+    this.maxRate = Math.max(1, maxRate);
+    this.rate = this.maxRate;
+    this.throttled = throttled;
+    this.rateLimiter =
+        RateLimiter.of(
+            name,
+            RateLimiterConfig.custom()
+                .limitForPeriod(rate)
+                .limitRefreshPeriod(Duration.ofSeconds(1))
+                .timeoutDuration(PERMIT_TIMEOUT)
+                .build());
+    this.retry =
+        Retry.of(
+            name,
+            RetryConfig.custom()
+                .maxAttempts(Math.max(1, RETRY_MAX_ATTEMPTS))
+                .intervalFunction(AdaptiveRateLimiter::fullJitterBackoff)
+                .retryOnException(retryable)
+                .build());
+  }
+
+  /*
+   * API to run a call once a permit is available, retrying it while it fails with a
+   * retryable error. Throws RequestNotPermitted if no permit is available in time.
+   * */
+  public <T> T call(Supplier<T> supplier) {
+    return Retry.decorateSupplier(retry, () -> attempt(supplier)).get();
+  }
+
+  /*
+   * API to wait for a permit before an asynchronous call, whose outcome is reported with
+   * onSuccess or onError
+   * */
+  public void acquire() {
+    RateLimiter.waitForPermission(rateLimiter);
+  }
+
+  /*
+   * API to take a permit only if one is available now, for optional calls such as hedges.
+   * Never waits: a permit reserved in a later cycle because another call took the last one
+   * is left unused.
+   * */
+  public boolean tryAcquire() {
+    return rateLimiter.getMetrics().getAvailablePermissions() > 0
+        && rateLimiter.reservePermission() == 0;
+  }
+
+  /*
+   * API to get the wait before a retry with full jitter: a random time between 0 and the
+   * exponential backoff of the attempt, capped at RETRY_MAX_INTERVAL
+   * */
+  static long fullJitterBackoff(int attempt) {
+    double backoff =
+        RETRY_INITIAL_INTERVAL.toMillis() * Math.pow(RETRY_MULTIPLIER, Math.max(0, attempt - 1));
+    long cap = (long) Math.min(RETRY_MAX_INTERVAL.toMillis(), backoff);
+    return ThreadLocalRandom.current().nextLong(cap + 1);
+  }
+
+  private <T> T attempt(Supplier<T> supplier) {
+    acquire();
+    try {
+      T result = supplier.get();
+      onSuccess();
+      return result;
+    } catch (RuntimeException e) {
+      onError(e);
+      throw e;
+    }
+  }
+
+  public synchronized void onSuccess() {
+    if (rate < maxRate && ++successes >= rate) {
+      successes = 0;
+      setRate(rate + 1);
+    }
+  }
+
+  public synchronized void onError(Throwable error) {
+    if (throttled.test(error)) {
+      successes = 0;
+      setRate(Math.max(1, rate / 2));
+      logger.log(Level.WARNING, name + " throttled, rate reduced to " + rate + "/s");
+    }
+  }
+
+  private void setRate(int newRate) {
+    if (newRate != rate) {
+      rate = newRate;
+      rateLimiter.changeLimitForPeriod(newRate);
+    }
+  }
+
+  public synchronized int getRate() {
+    return rate;
+  }
+
+  static boolean isMonitoringThrottled(Throwable error) {
+    return error instanceof ApiException
+        && ((ApiException) error).getStatusCode().getCode() == StatusCode.Code.RESOURCE_EXHAUSTED;
+  }
+
+  static boolean isMonitoringRetryable(Throwable error) {
+    if (!(error instanceof ApiException)) {
+      return false;
+    }
+    StatusCode.Code code = ((ApiException) error).getStatusCode().getCode();
+    return code == StatusCode.Code.RESOURCE_EXHAUSTED
+        || code == StatusCode.Code.UNAVAILABLE
+        || code == StatusCode.Code.DEADLINE_EXCEEDED;
+  }
+
+  static boolean isBigQueryThrottled(Throwable error) {
+    if (!(error instanceof BigQueryException)) {
+      return false;
+    }
+    BigQueryException e = (BigQueryException) error;
+    return e.getCode() == 429
+        || "rateLimitExceeded".equals(e.getReason())
+        || "quotaExceeded".equals(e.getReason());
+  }
+
+  static boolean isBigQueryRetryable(Throwable error) {
+    return error instanceof BigQueryException
+        && (((BigQueryException) error).isRetryable() || isBigQueryThrottled(error));
+  }
+}
@@ -0,0 +1,253 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.QueryJobConfiguration;
+import com.google.cloud.bigquery.QueryParameterValue;
+import com.google.cloud.bigquery.TableResult;
+import functions.ScanProjectQuotasHelper.QueryType;
+import functions.eventpojos.ScanScheduleState;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Chooses which projects to scan on each listing from their last observed consumption.
+ * Every project gets a scan interval between ADAPTIVE_MIN_INTERVAL_MINUTES, for a project at
+ * the alert threshold, and ADAPTIVE_MAX_INTERVAL_MINUTES, for a project with no usage; the
+ * interval shrinks with the square of the consumption to threshold ratio. Due projects are
+ * published by priority, overdue and near the threshold first, until SCAN_QUERY_BUDGET
+ * Monitoring queries are spent. Projects never scanned go first.
+ *
+ * The consumption is the highest usage to limit ratio of each project in the BigQuery table
+ * over CONSUMPTION_LOOKBACK_HOURS, read from the partitions of that period only. If the
+ * table cannot be read, every project gets the minimum interval. The last scan times are
+ * kept with StateStore.
+ * */
+public class AdaptiveScanScheduler {
+  private static final Logger logger = Logger.getLogger(AdaptiveScanScheduler.class.getName());
+
+  // Publish projects at an interval that follows their consumption instead of on every listing
+  public static final boolean ADAPTIVE_SCAN = EnvironmentConfig.getBoolean("ADAPTIVE_SCAN", false);
+  // Interval of a project at or above the threshold, 0 scans it on every listing
+  public static final int ADAPTIVE_MIN_INTERVAL_MINUTES =
+      EnvironmentConfig.getInt("ADAPTIVE_MIN_INTERVAL_MINUTES", 0);
+  // Interval of a project without usage
+  public static final int ADAPTIVE_MAX_INTERVAL_MINUTES =
+      EnvironmentConfig.getInt("ADAPTIVE_MAX_INTERVAL_MINUTES", 360);
+  // Monitoring queries a listing may schedule, 0 for no limit
+  public static final int SCAN_QUERY_BUDGET = EnvironmentConfig.getInt("SCAN_QUERY_BUDGET", 0);
+  // Hours of scan results the consumption of a project is read from
+  public static final int CONSUMPTION_LOOKBACK_HOURS =
+      EnvironmentConfig.getInt("CONSUMPTION_LOOKBACK_HOURS", 24);
+  // Ingestion time partitioning of the scan results table: HOUR, DAY, MONTH or YEAR
+  public static final String BIG_QUERY_TABLE_PARTITION =
+      partitionUnit(EnvironmentConfig.getString("BIG_QUERY_TABLE_PARTITION", "DAY"));
+
+  // Sharded scanners keep one schedule per shard
+  private static final String STATE_NAME =
+      "scheduler/last-scan" + (ShardRing.isSharded() ? "-" + ShardRing.SHARD_INDEX : "") + ".json";
+  private static final int QUERIES_PER_SCAN = QueryType.values().length;
+  // Projects not scheduled for this long are dropped from the schedule, well after their
+  // longest interval so a cold project is not taken for one never scanned
+  private static final long FORGET_SECONDS =
+      Math.max(7 * 86400L, 2 * 60L * ADAPTIVE_MAX_INTERVAL_MINUTES);
+
+  // Only the partitions of the lookback are read, rows still in the streaming buffer have no
+  // partition time yet
+  private static final String CONSUMPTION_QUERY =
+      "SELECT project_id, MAX(SAFE_DIVIDE(GREATEST(IFNULL(current_usage, 0),"
+          + " IFNULL(max_usage, 0)), quota_limit)) * 100 AS max_consumption"
+          + " FROM `%1$s`"
+          + " WHERE (_PARTITIONTIME IS NULL OR _PARTITIONTIME >= TIMESTAMP_TRUNC("
+          + "TIMESTAMP_SUB(CURRENT_TIMESTAMP(), INTERVAL @hours HOUR), %2$s))"
+          + " AND added_at > TIMESTAMP_SUB(CURRENT_TIMESTAMP(), INTERVAL @hours HOUR)"
+          + " AND quota_limit > 0"
+          + " GROUP BY project_id";
+
+  private final Map<String, Double> consumptions;
+  private final ScanScheduleState state;
+  private final int threshold;
+  private final long now = Instant.now().getEpochSecond();
+
+  private int scheduled;
+
+  AdaptiveScanScheduler(Map<String, Double> consumptions, ScanScheduleState state, int threshold) {
+    this.consumptions = consumptions;
+    this.state = state;
+    this.threshold = threshold;
+  }
+
+  /*
+   * API to create a scheduler with the consumptions of the scan results table, the home
+   * project may be null for the default project of the client
+   * */
+  public static AdaptiveScanScheduler load(
+      String homeProjectId, String dataset, String table, int threshold) {
+    ScanScheduleState state = StateStore.read(STATE_NAME, ScanScheduleState.class);
+    return new AdaptiveScanScheduler(
+        readConsumptions(homeProjectId, dataset, table),
+        state == null ? new ScanScheduleState() : state,
+        threshold);
+  }
+
+  /*
+   * API to read the maximum consumption, in percent, of every project with recent results.
+   * Returns null if the table cannot be read, every project then gets the minimum interval.
+   * */
+  static Map<String, Double> readConsumptions(String homeProjectId, String dataset, String table) {
+    Map<String, Double> consumptions = new HashMap<>();
+    BigQuery bigquery = BigQueryOptions.getDefaultInstance().getService();
+    String tableName =
+        homeProjectId == null ? dataset + "." + table : homeProjectId + "." + dataset + "." + table;
+    QueryJobConfiguration queryConfig =
+        QueryJobConfiguration.newBuilder(
+                String.format(CONSUMPTION_QUERY, tableName, BIG_QUERY_TABLE_PARTITION))
+            .addNamedParameter("hours", QueryParameterValue.int64(CONSUMPTION_LOOKBACK_HOURS))
+            .setUseLegacySql(false)
+            .build();
+    try {
+      TableResult result = bigquery.query(queryConfig);
+      for (FieldValueList row : result.iterateAll()) {
+        if (!row.get("max_consumption").isNull()) {
+          consumptions.put(
+              row.get("project_id").getStringValue(),
+              row.get("max_consumption").getDoubleValue());
+        }
+      }
+    } catch (BigQueryException e) {
+      logger.log(Level.WARNING, "Error reading consumptions: " + e.getMessage(), e);
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    return consumptions;
+  }
+
+  /*
+   * API to get the TIMESTAMP_TRUNC part of a partitioning type, DAY if it is unknown
+   * */
+  private static String partitionUnit(String partition) {
+    switch (partition.toUpperCase()) {
+      case "HOUR":
+      case "MONTH":
+      case "YEAR":
+        return partition.toUpperCase();
+      default:
+        return "DAY";
+    }
+  }
+
+  /*
+   * API to choose the projects to scan now among the listed ones, by priority and within
+   * the query budget
+   * */
+  public List<String> select(List<String> projectIds) {
+    List<String> due = new ArrayList<>();
+    Map<String, Double> priorities = new HashMap<>();
+    for (String projectId : projectIds) {
+      double priority = priority(projectId);
+      if (priority >= 1) {
+        due.add(projectId);
+        priorities.put(projectId, priority);
+      }
+    }
+    due.sort(Comparator.comparing(priorities::get, Comparator.reverseOrder()));
+
+    List<String> selected = new ArrayList<>();
+    for (String projectId : due) {
+      if (!isDue(projectId)) {
+        break;
+      }
+      selected.add(projectId);
+    }
+    logger.info(
+        projectIds.size() + " projects listed, " + due.size() + " due, " + selected.size()
+            + " scheduled within the query budget");
+    return selected;
+  }
+
+  /*
+   * API to check a single project in listing order, used when projects are published as
+   * they are listed. A due project is recorded as scheduled while the budget allows.
+   * */
+  public boolean isDue(String projectId) {
+    if (priority(projectId) < 1
+        || (SCAN_QUERY_BUDGET > 0 && (scheduled + 1) * QUERIES_PER_SCAN > SCAN_QUERY_BUDGET)) {
+      return false;
+    }
+    scheduled++;
+    state.getLastScans().put(projectId, now);
+    return true;
+  }
+
+  /*
+   * API to get the priority of a project: the elapsed part of its interval, weighted by its
+   * consumption. A project is due at 1.
+   * */
+  double priority(String projectId) {
+    Long lastScan = state.getLastScans().get(projectId);
+    if (lastScan == null) {
+      return Double.MAX_VALUE;
+    }
+    double ratio = consumptionRatio(projectId);
+    long interval = intervalSeconds(ratio);
+    if (interval <= 0) {
+      return 1 + ratio;
+    }
+    double elapsed = (double) (now - lastScan) / interval;
+    return elapsed < 1 ? elapsed : elapsed * (1 + ratio);
+  }
+
+  private double consumptionRatio(String projectId) {
+    if (consumptions == null) {
+      // Without consumptions every project is scanned as often as one at the threshold
+      return 1;
+    }
+    Double consumption = consumptions.get(projectId);
+    if (consumption == null || threshold <= 0) {
+      return 0;
+    }
+    return Math.min(1, consumption / threshold);
+  }
+
+  private static long intervalSeconds(double ratio) {
+    double min = ADAPTIVE_MIN_INTERVAL_MINUTES * 60.0;
+    double max = Math.max(ADAPTIVE_MIN_INTERVAL_MINUTES, ADAPTIVE_MAX_INTERVAL_MINUTES) * 60.0;
+    return Math.round(max - (max - min) * ratio * ratio);
+  }
+
+  /*
+   * API to persist the scan times of the scheduled projects
+   * */
+  public void save() {
+    for (Iterator<Long> it = state.getLastScans().values().iterator(); it.hasNext(); ) {
+      if (now - it.next() > FORGET_SECONDS) {
+        it.remove();
+      }
+    }
+    StateStore.write(STATE_NAME, state);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.cloud.asset.v1.AssetServiceClient;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/*
+ * Holds the Cloud Asset Inventory AssetServiceClient shared by every inventory refresh on
+ * this instance. The client is created on first use, kept while the function instance stays
+ * warm and shut down when the JVM exits.
+ * */
+public final class AssetServiceClientHolder {
+  private static final Logger logger = Logger.getLogger(AssetServiceClientHolder.class.getName());
+
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+  private static AssetServiceClient assetServiceClient;
+  private static boolean shutdownHookRegistered;
+
+  private AssetServiceClientHolder() {}
+
+  /*
+   * API to get the shared AssetServiceClient, creating it if needed
+   * */
+  public static synchronized AssetServiceClient getAssetServiceClient() throws IOException {
+    if (assetServiceClient == null || assetServiceClient.isShutdown()) {
+      assetServiceClient = AssetServiceClient.create();
+      logger.info("Created AssetServiceClient");
+      if (!shutdownHookRegistered) {
+        Runtime.getRuntime().addShutdownHook(new Thread(AssetServiceClientHolder::shutdown));
+        shutdownHookRegistered = true;
+      }
+    }
+    return assetServiceClient;
+  }
+
+  /*
+   * API to close the shared client and wait for in-flight calls to finish
+   * */
+  public static synchronized void shutdown() {
+    if (assetServiceClient == null) {
+      return;
+    }
+    try {
+      assetServiceClient.shutdown();
+      if (!assetServiceClient.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        assetServiceClient.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      assetServiceClient.shutdownNow();
+      Thread.currentThread().interrupt();
+    } finally {
+      assetServiceClient = null;
+    }
+  }
+}
@@ -0,0 +1,329 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import static functions.ScanProjectQuotasHelper.createBQRow;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.InsertAllResponse;
+import com.google.cloud.bigquery.TableId;
+import functions.eventpojos.ProjectQuota;
+import io.github.resilience4j.ratelimiter.RequestNotPermitted;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Buffers rows of ProjectQuotaBatch objects and writes them to BigQuery with one insertAll
+ * request per batch. A batch is sent once it reaches the row count or byte size limit, once
+ * the oldest buffered row has waited for the delay limit, or when the writer is flushed or
+ * closed. Rows rejected by BigQuery are reported against the ProjectQuota they were built from.
+ * */
+public class BigQueryBatchWriter implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(BigQueryBatchWriter.class.getName());
+
+  // Maximum number of rows sent in one insertAll request
+  public static final int MAX_BATCH_ROWS = EnvironmentConfig.getInt("BIG_QUERY_BATCH_MAX_ROWS", 500);
+  // Maximum estimated size of one insertAll request, BigQuery rejects requests over 10 MB
+  public static final long MAX_BATCH_BYTES =
+      EnvironmentConfig.getLong("BIG_QUERY_BATCH_MAX_BYTES", 5L * 1024 * 1024);
+  // Maximum time a buffered row waits before its batch is sent
+  public static final long MAX_BATCH_DELAY_MS =
+      EnvironmentConfig.getLong("BIG_QUERY_BATCH_MAX_DELAY_MS", 1000L);
+
+  // Fixed JSON overhead per row and per field in an insertAll request body
+  private static final int ROW_OVERHEAD_BYTES = 16;
+  private static final int FIELD_OVERHEAD_BYTES = 6;
+  // Rejected rows kept for getFailedRows, a writer shared by an instance must not grow forever
+  private static final int MAX_FAILED_ROWS = 1000;
+
+  private static final ScheduledExecutorService flushScheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "bigquery-batch-flush");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final BigQuery bigQuery;
+  private final TableId tableId;
+
+  // Source batch and row index of each pending row, objects are only built for failed rows
+  private final List<ProjectQuotaBatch> pendingBatches = new ArrayList<>();
+  private int[] pendingIndexes = new int[64];
+  private final List<InsertAllRequest.RowToInsert> pendingRows = new ArrayList<>();
+  private long pendingBytes;
+  private ScheduledFuture<?> scheduledFlush;
+  // Drained requests that are still being sent
+  private int inFlight;
+
+  private final Map<ProjectQuota, List<BigQueryError>> failedRows = new LinkedHashMap<>();
+  private long rowsWritten;
+  private int requestCount;
+
+  public BigQueryBatchWriter(BigQuery bigQuery, TableId tableId) {
+    this.bigQuery = bigQuery;
+    this.tableId = tableId;
+  }
+
+  /*
+   * API to buffer one row of a batch, sending the current batch first if the row would not
+   * fit in it. Full batches are sent outside the lock, so a slow or throttled insert does
+   * not block the scans adding rows.
+   * */
+  public void add(ProjectQuotaBatch batch, int index) {
+    Map<String, Object> row = createBQRow(batch, index);
+    long rowBytes = estimateRowBytes(row);
+    PendingRequest previous = null;
+    PendingRequest full = null;
+
+    synchronized (this) {
+      if (!pendingRows.isEmpty() && pendingBytes + rowBytes > MAX_BATCH_BYTES) {
+        previous = drain();
+      }
+
+      if (pendingRows.size() == pendingIndexes.length) {
+        pendingIndexes = Arrays.copyOf(pendingIndexes, pendingIndexes.length * 2);
+      }
+      pendingIndexes[pendingRows.size()] = index;
+      pendingBatches.add(batch);
+      pendingRows.add(InsertAllRequest.RowToInsert.of(insertId(batch, index), row));
+      pendingBytes += rowBytes;
+
+      if (pendingRows.size() >= MAX_BATCH_ROWS || pendingBytes >= MAX_BATCH_BYTES) {
+        full = drain();
+      } else if (scheduledFlush == null) {
+        scheduledFlush =
+            flushScheduler.schedule(this::flush, MAX_BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+      }
+    }
+    send(previous);
+    send(full);
+  }
+
+  /*
+   * API to buffer all rows of a batch
+   * */
+  public void addAll(ProjectQuotaBatch batch) {
+    for (int index = 0; index < batch.size(); index++) {
+      add(batch, index);
+    }
+  }
+
+  /*
+   * API to buffer a list of rows
+   * */
+  public void addAll(List<ProjectQuota> projectQuotas) {
+    addAll(ProjectQuotaBatch.of(projectQuotas));
+  }
+
+  /*
+   * API to send all buffered rows in one insertAll request and wait for the requests other
+   * threads are sending
+   * */
+  public void flush() {
+    send(drain());
+    synchronized (this) {
+      while (inFlight > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /*
+   * API to take the buffered rows as one request, returns null if there are none
+   * */
+  private synchronized PendingRequest drain() {
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+    if (pendingRows.isEmpty()) {
+      return null;
+    }
+    PendingRequest request =
+        new PendingRequest(
+            new ArrayList<>(pendingBatches),
+            Arrays.copyOf(pendingIndexes, pendingRows.size()),
+            new ArrayList<>(pendingRows));
+    pendingBatches.clear();
+    pendingRows.clear();
+    pendingBytes = 0;
+    inFlight++;
+    requestCount++;
+    return request;
+  }
+
+  /*
+   * API to send a drained request, with the rate limiter and its retries, outside the lock
+   * */
+  private void send(PendingRequest pending) {
+    if (pending == null) {
+      return;
+    }
+    List<ProjectQuotaBatch> batches = pending.batches;
+    int[] indexes = pending.indexes;
+    InsertAllRequest request = InsertAllRequest.newBuilder(tableId).setRows(pending.rows).build();
+    try {
+      InsertAllResponse response =
+          AdaptiveRateLimiter.BIG_QUERY.call(() -> bigQuery.insertAll(request));
+      int failed = 0;
+      Map<Long, List<BigQueryError>> insertErrors =
+          response.hasErrors() ? response.getInsertErrors() : Collections.emptyMap();
+      // Map the row index of each error back to the ProjectQuota it was built from
+      for (Map.Entry<Long, List<BigQueryError>> entry : insertErrors.entrySet()) {
+        int i = entry.getKey().intValue();
+        reportFailedRow(batches.get(i).get(indexes[i]), entry.getValue());
+        failed++;
+      }
+      for (int i = 0; i < indexes.length; i++) {
+        if (!insertErrors.containsKey((long) i)) {
+          ScanTelemetry.recordRowsWritten(
+              batches.get(i).getProjectId(indexes[i]), batches.get(i).getQuotaType(indexes[i]), 1);
+          batches.get(i).recordRowsWritten(1);
+        }
+      }
+      synchronized (this) {
+        rowsWritten += indexes.length - failed;
+      }
+    } catch (BigQueryException | RequestNotPermitted e) {
+      logger.log(Level.SEVERE, "Insert operation not performed: " + e.toString());
+      List<BigQueryError> errors =
+          Collections.singletonList(
+              e instanceof BigQueryException
+                  ? ((BigQueryException) e).getError()
+                  : new BigQueryError("rateLimitExceeded", null, e.getMessage()));
+      for (int i = 0; i < indexes.length; i++) {
+        ProjectQuota projectQuota = batches.get(i).get(indexes[i]);
+        keepFailedRow(projectQuota, errors);
+        ScanTelemetry.recordInsertErrors(projectQuota.getProjectId(), projectQuota.getQuotaType(), 1);
+      }
+    } finally {
+      synchronized (this) {
+        inFlight--;
+        notifyAll();
+      }
+    }
+  }
+
+  private void reportFailedRow(ProjectQuota projectQuota, List<BigQueryError> errors) {
+    keepFailedRow(projectQuota, errors);
+    ScanTelemetry.recordInsertErrors(projectQuota.getProjectId(), projectQuota.getQuotaType(), 1);
+    logger.log(
+        Level.SEVERE,
+        "Bigquery row insert response error for project: "
+            + projectQuota.getProjectId()
+            + ", metric: "
+            + projectQuota.getMetric()
+            + ", limit: "
+            + projectQuota.getLimitName()
+            + ", region: "
+            + projectQuota.getRegion()
+            + " "
+            + errors);
+  }
+
+  private synchronized void keepFailedRow(ProjectQuota projectQuota, List<BigQueryError> errors) {
+    if (failedRows.size() < MAX_FAILED_ROWS) {
+      failedRows.put(projectQuota, errors);
+    }
+  }
+
+  /*
+   * API to get the rows BigQuery rejected with their errors, up to MAX_FAILED_ROWS of them
+   * */
+  public synchronized Map<ProjectQuota, List<BigQueryError>> getFailedRows() {
+    return new LinkedHashMap<>(failedRows);
+  }
+
+  public synchronized long getRowsWritten() {
+    return rowsWritten;
+  }
+
+  public synchronized int getRequestCount() {
+    return requestCount;
+  }
+
+  @Override
+  public void close() {
+    flush();
+  }
+
+  /*
+   * Rows taken from the buffer for one insertAll request, with the source batch and row
+   * index of each of them
+   * */
+  private static final class PendingRequest {
+    private final List<ProjectQuotaBatch> batches;
+    private final int[] indexes;
+    private final List<InsertAllRequest.RowToInsert> rows;
+
+    PendingRequest(
+        List<ProjectQuotaBatch> batches, int[] indexes, List<InsertAllRequest.RowToInsert> rows) {
+      this.batches = batches;
+      this.indexes = indexes;
+      this.rows = rows;
+    }
+  }
+
+  /*
+   * API to get the insert Id of a row, derived from the series and time of the row so that
+   * BigQuery drops the copy a retried insertAll writes after a timeout or server error
+   * */
+  static String insertId(ProjectQuotaBatch batch, int index) {
+    String key =
+        String.join(
+            "|",
+            String.valueOf(batch.getProjectId(index)),
+            String.valueOf(batch.getTimestamp()),
+            String.valueOf(batch.getRegion(index)),
+            String.valueOf(batch.getMetric(index)),
+            String.valueOf(batch.getApiMethod(index)),
+            String.valueOf(batch.getLimitName(index)),
+            String.valueOf(batch.getQuotaType(index)));
+    return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+  }
+
+  /*
+   * API to estimate the JSON encoded size of a row in an insertAll request
+   * */
+  static long estimateRowBytes(Map<String, Object> row) {
+    long bytes = ROW_OVERHEAD_BYTES;
+    for (Map.Entry<String, Object> field : row.entrySet()) {
+      bytes += FIELD_OVERHEAD_BYTES + field.getKey().length();
+      Object value = field.getValue();
+      bytes += value == null ? 4 : String.valueOf(value).length();
+    }
+    return bytes;
+  }
+}
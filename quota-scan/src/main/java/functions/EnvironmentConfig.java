@@ -0,0 +1,81 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Helpers to read optional Cloud Function Environment variables with a default value.
+ * */
+public final class EnvironmentConfig {
+  private static final Logger logger = Logger.getLogger(EnvironmentConfig.class.getName());
+
+  private EnvironmentConfig() {}
+
+  public static String getString(String name, String defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.isBlank() ? defaultValue : value.trim();
+  }
+
+  public static int getInt(String name, int defaultValue) {
+    String value = getString(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      logger.log(Level.WARNING, "Invalid value for " + name + ": " + value + ", using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  public static long getLong(String name, long defaultValue) {
+    String value = getString(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      logger.log(Level.WARNING, "Invalid value for " + name + ": " + value + ", using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    String value = getString(name, null);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+
+  /*
+   * API to read a comma separated list, blank entries are dropped
+   * */
+  public static List<String> getList(String name) {
+    List<String> values = new ArrayList<>();
+    String value = getString(name, null);
+    if (value == null) {
+      return values;
+    }
+    for (String entry : value.split(",")) {
+      if (!entry.isBlank()) {
+        values.add(entry.trim());
+      }
+    }
+    return values;
+  }
+}
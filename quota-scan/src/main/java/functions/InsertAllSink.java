@@ -0,0 +1,45 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.TableId;
+
+/*
+ * Sink that writes rows with BigQuery streaming inserts through BigQueryBatchWriter.
+ * All scans of the sink share one writer, so rows of concurrent scans fill the same
+ * insertAll requests and the trailing rows of a scan wait at most MAX_BATCH_DELAY_MS.
+ * */
+public class InsertAllSink implements ProjectQuotaSink {
+  private final BigQueryBatchWriter writer;
+
+  public InsertAllSink(BigQuery bigQuery, TableId tableId) {
+    this.writer = new BigQueryBatchWriter(bigQuery, tableId);
+  }
+
+  @Override
+  public void write(ProjectQuotaBatch batch) {
+    writer.addAll(batch);
+  }
+
+  @Override
+  public void flush() {
+    writer.flush();
+  }
+
+  @Override
+  public void close() {
+    writer.close();
+  }
+}
@@ -23,7 +23,6 @@ import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.core.ApiFuture;
 import com.google.api.core.ApiFutures;
-import com.google.api.gax.batching.BatchingSettings;
 import com.google.api.services.cloudresourcemanager.CloudResourceManager;
 import com.google.api.services.cloudresourcemanager.model.ListProjectsResponse;
 import com.google.api.services.cloudresourcemanager.model.Project;
@@ -35,22 +34,25 @@ import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
-import com.google.protobuf.ByteString;
-import com.google.pubsub.v1.ProjectTopicName;
-import com.google.pubsub.v1.PubsubMessage;
 import com.google.pubsub.v1.TopicName;
+import functions.eventpojos.InventoryProject;
+import functions.eventpojos.ScanEnvelope;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.threeten.bp.Duration;
 
 /*
  * The ListProjects Cloud Function lists project Ids for a given parent node.
@@ -63,10 +65,34 @@ public class ListProjects implements HttpFunction {
   private static final String HOME_PROJECT_ID = System.getenv("HOME_PROJECT");
   // Cloud Function Environment variable for Threshold
   private static final String THRESHOLD = System.getenv("THRESHOLD");
+  // BigQuery Dataset and Table of the scan results, read by the adaptive scheduler
+  private static final String BIG_QUERY_DATASET = System.getenv("BIG_QUERY_DATASET");
+  private static final String BIG_QUERY_TABLE = System.getenv("BIG_QUERY_TABLE");
+  private static final int DEFAULT_THRESHOLD = 80;
+  // Number of project Ids published per message, batches are scanned with one set of queries
+  // when the scan function has a metrics scope host project
+  private static final int PROJECT_BATCH_SIZE = EnvironmentConfig.getInt("PROJECT_BATCH_SIZE", 1);
+  // Publish the project Ids of each page while the next page is fetched
+  private static final boolean STREAMING_LIST = EnvironmentConfig.getBoolean("STREAMING_LIST", false);
+  // Walk the organizations and folders of the request instead of listing every visible project
+  private static final boolean HIERARCHY_TRAVERSAL =
+      EnvironmentConfig.getBoolean("HIERARCHY_TRAVERSAL", false);
+  // Serve the projects of the organizations and folders of the request from a persisted
+  // inventory that is refreshed incrementally
+  private static final boolean INVENTORY_CACHE = EnvironmentConfig.getBoolean("INVENTORY_CACHE", false);
+  // Publish batches of project Ids as JSON envelopes instead of comma separated Ids
+  private static final boolean MESSAGE_ENVELOPE = EnvironmentConfig.getBoolean("MESSAGE_ENVELOPE", false);
+  // Publish this many shard descriptors of the inventory instead of the project Ids, each
+  // scan invocation then reads its shard of the inventory. Requires INVENTORY_CACHE.
+  private static final int SHARD_MESSAGES = EnvironmentConfig.getInt("SHARD_MESSAGES", 0);
 
   private static final Logger logger = Logger.getLogger(ListProjects.class.getName());
 
   private static final Gson gson = new Gson();
+  // Fetches the next page of projects while a page is published, shared by all requests
+  private static final ExecutorService pagePrefetcher = Executors.newCachedThreadPool();
+
+  private static CloudResourceManager cloudResourceManager;
 
   /*
    * API to accept the Http request to Cloud Function.
@@ -90,18 +116,52 @@ public class ListProjects implements HttpFunction {
       if (requestJson != null && requestJson.has("organizations")) {
         projectId = requestJson.get("projectId").getAsString();
       }
+      if (requestJson != null && requestJson.has("threshold")) {
+        threshold = requestJson.get("threshold").getAsString();
+      }
+      List<String> parents = new ArrayList<>();
+      if (requestJson != null) {
+        parents.addAll(
+            ProjectHierarchyTraversal.parseParents(requestJson.get("organizations"), "organizations"));
+        parents.addAll(ProjectHierarchyTraversal.parseParents(requestJson.get("folders"), "folders"));
+      }
       logger.info("Publishing message to topic: " + TOPIC_NAME);
       logger.info("ProjectId: " + projectId);
 
-      ByteString byteStr = ByteString.copyFrom(HOME_PROJECT_ID, StandardCharsets.UTF_8);
-      PubsubMessage pubsubApiMessage = PubsubMessage.newBuilder().setData(byteStr).build();
-      Publisher publisher =
-          Publisher.newBuilder(ProjectTopicName.of(HOME_PROJECT_ID, TOPIC_NAME)).build();
       // Attempt to publish the message
-      publisher.publish(pubsubApiMessage).get();
+      publish(
+              getPublisher(),
+              HOME_PROJECT_ID,
+              shardAttributes(ShardRing.shardOf(HOME_PROJECT_ID, ShardRing.SHARD_COUNT)))
+          .get();
       responseMessage = "Message published.";
-      List<String> projectIds = getProjectIds();
-      publishMessages(projectIds);
+      ScanEligibilityFilter filter = ScanEligibilityFilter.load();
+      AdaptiveScanScheduler scheduler =
+          AdaptiveScanScheduler.ADAPTIVE_SCAN
+              ? AdaptiveScanScheduler.load(
+                  HOME_PROJECT_ID, BIG_QUERY_DATASET, BIG_QUERY_TABLE, parseThreshold(threshold))
+              : null;
+      if (INVENTORY_CACHE && !parents.isEmpty() && SHARD_MESSAGES > 0) {
+        // The scan function filters the projects of its shard
+        ProjectInventory.listProjects(parents);
+        publishShards(parents, SHARD_MESSAGES);
+      } else if (INVENTORY_CACHE && !parents.isEmpty()) {
+        List<InventoryProject> projects = ProjectInventory.listProjects(parents);
+        publishMessages(schedule(scheduler, filter.filter(projects)));
+      } else if (HIERARCHY_TRAVERSAL && !parents.isEmpty()) {
+        try (ProjectHierarchyTraversal traversal = new ProjectHierarchyTraversal()) {
+          publishMessages(schedule(scheduler, filter.filter(traversal.listProjects(parents))));
+        }
+      } else if (STREAMING_LIST) {
+        publishProjectIdsStreaming(filter, scheduler);
+      } else {
+        List<String> projectIds = schedule(scheduler, filter.filter(getProjects()));
+        publishMessages(projectIds);
+      }
+      filter.complete();
+      if (scheduler != null) {
+        scheduler.save();
+      }
     } catch (JsonParseException e) {
       logger.severe("Error parsing JSON: " + e.getMessage());
     } catch (InterruptedException | ExecutionException | GeneralSecurityException e) {
@@ -115,13 +175,33 @@ public class ListProjects implements HttpFunction {
   }
 
   /*
-   * API to get accessible project Ids and create a list
+   * API to keep the projects the adaptive scheduler chooses to scan now, all of them when
+   * adaptive scans are disabled
+   * */
+  private static List<String> schedule(AdaptiveScanScheduler scheduler, List<String> projectIds) {
+    return scheduler == null ? projectIds : scheduler.select(projectIds);
+  }
+
+  private static int parseThreshold(String threshold) {
+    try {
+      if (threshold != null) {
+        return Integer.parseInt(threshold.trim());
+      }
+    } catch (NumberFormatException e) {
+      // Logged below
+    }
+    logger.warning("Invalid threshold " + threshold + ", scheduling with " + DEFAULT_THRESHOLD);
+    return DEFAULT_THRESHOLD;
+  }
+
+  /*
+   * API to get accessible projects and create a list
    * */
-  private static List<String> getProjectIds() throws IOException, GeneralSecurityException {
-    List<String> projectIds = new ArrayList<>();
+  private static List<InventoryProject> getProjects() throws IOException, GeneralSecurityException {
+    List<InventoryProject> projects = new ArrayList<>();
     // Instantiate Cloud Resource Manager Service and list projects.
     CloudResourceManager.Projects.List request =
-        createCloudResourceManagerService().projects().list();
+        getCloudResourceManagerService().projects().list();
     // Iterate over the project list and fetch project Ids to create a list of project Ids
     ListProjectsResponse projectsResponse;
     do {
@@ -130,64 +210,207 @@ public class ListProjects implements HttpFunction {
         continue;
       }
       for (Project project : projectsResponse.getProjects()) {
-        projectIds.add(project.getProjectId());
-        logger.info("Received Project Id: " + project.getProjectId());
+        projects.add(toInventoryProject(project));
       }
       request.setPageToken(projectsResponse.getNextPageToken());
     } while (projectsResponse.getNextPageToken() != null);
-    return projectIds;
+    logger.info("Received " + projects.size() + " Project Ids");
+    return projects;
+  }
+
+  private static InventoryProject toInventoryProject(Project project) {
+    InventoryProject listed = new InventoryProject();
+    listed.setProjectId(project.getProjectId());
+    listed.setState(project.getLifecycleState());
+    listed.setLabels(project.getLabels());
+    return listed;
   }
 
   /*
-   * API to publish message to Pub/Sub topic
+   * API to list accessible projects and publish the Ids of the eligible ones page by page. The
+   * next page is fetched while the Ids of the current one are published, so scans start with
+   * the first page. The adaptive scheduler, if any, is applied in listing order.
    * */
-  public static void publishMessages(List<String> projectIds)
-      throws IOException, ExecutionException, InterruptedException {
-    TopicName topicName = TopicName.of(HOME_PROJECT_ID, TOPIC_NAME);
-    Publisher publisher = null;
+  private static void publishProjectIdsStreaming(
+      ScanEligibilityFilter filter, AdaptiveScanScheduler scheduler)
+      throws IOException, GeneralSecurityException, ExecutionException, InterruptedException {
+    CloudResourceManager resourceManager = getCloudResourceManagerService();
+    Publisher publisher = getPublisher();
     List<ApiFuture<String>> messageIdFutures = new ArrayList<>();
+    Future<ListProjectsResponse> nextPage = null;
+    Map<Integer, List<String>> groups = new HashMap<>();
+    long projectCount = 0;
 
     try {
-      // Batch settings control how the publisher batches messages
-      long requestBytesThreshold = 5000L; // default : 1 byte
-      long messageCountBatchSize = 100L; // default : 1 message
-
-      Duration publishDelayThreshold = Duration.ofMillis(100); // default : 1 ms
+      nextPage = pagePrefetcher.submit(resourceManager.projects().list()::execute);
+      while (nextPage != null) {
+        ListProjectsResponse projectsResponse = nextPage.get();
+        String nextPageToken = projectsResponse.getNextPageToken();
+        nextPage =
+            nextPageToken == null
+                ? null
+                : pagePrefetcher.submit(
+                    resourceManager.projects().list().setPageToken(nextPageToken)::execute);
 
-      // Publish request get triggered based on request size, messages count & time since last
-      // publish, whichever condition is met first.
-      BatchingSettings batchingSettings =
-          BatchingSettings.newBuilder()
-              .setElementCountThreshold(messageCountBatchSize)
-              .setRequestByteThreshold(requestBytesThreshold)
-              .setDelayThreshold(publishDelayThreshold)
-              .build();
+        if (projectsResponse.getProjects() == null) {
+          continue;
+        }
+        for (Project project : projectsResponse.getProjects()) {
+          projectCount++;
+          if (!filter.isEligible(toInventoryProject(project))
+              || (scheduler != null && !scheduler.isDue(project.getProjectId()))) {
+            continue;
+          }
+          int shard = ShardRing.shardOf(project.getProjectId(), ShardRing.SHARD_COUNT);
+          List<String> group = groups.computeIfAbsent(shard, k -> new ArrayList<>());
+          group.add(project.getProjectId());
+          if (group.size() >= Math.max(PROJECT_BATCH_SIZE, 1)) {
+            messageIdFutures.add(publish(publisher, toMessage(group), shardAttributes(shard)));
+            group.clear();
+          }
+        }
+      }
+      for (Map.Entry<Integer, List<String>> group : groups.entrySet()) {
+        if (!group.getValue().isEmpty()) {
+          messageIdFutures.add(
+              publish(publisher, toMessage(group.getValue()), shardAttributes(group.getKey())));
+        }
+      }
+    } finally {
+      if (nextPage != null) {
+        nextPage.cancel(true);
+      }
+      // Wait on any pending publish requests.
+      List<String> messageIds = ApiFutures.allAsList(messageIdFutures).get();
+      logger.info(
+          "Received " + projectCount + " Project Ids, published " + messageIds.size() + " messages");
+    }
+  }
 
-      // Create a publisher instance with default settings bound to the topic
-      publisher = Publisher.newBuilder(topicName).setBatchingSettings(batchingSettings).build();
+  /*
+   * API to publish message to Pub/Sub topic
+   * */
+  public static void publishMessages(List<String> projectIds)
+      throws IOException, ExecutionException, InterruptedException {
+    Publisher publisher = getPublisher();
+    List<ApiFuture<String>> messageIdFutures = new ArrayList<>();
 
+    try {
       // schedule publishing one message at a time : messages get automatically batched
-      for (String projectId : projectIds) {
-        String message = projectId;
-        ByteString data = ByteString.copyFromUtf8(message);
-        PubsubMessage pubsubMessage = PubsubMessage.newBuilder().setData(data).build();
-
-        // Once published, returns a server-assigned message id (unique within the topic)
-        ApiFuture<String> messageIdFuture = publisher.publish(pubsubMessage);
-        messageIdFutures.add(messageIdFuture);
+      for (Map.Entry<Integer, List<String>> shard : splitByShard(projectIds).entrySet()) {
+        Map<String, String> attributes = shardAttributes(shard.getKey());
+        for (String message : groupProjectIds(shard.getValue(), PROJECT_BATCH_SIZE)) {
+          messageIdFutures.add(publish(publisher, message, attributes));
+        }
       }
     } finally {
       // Wait on any pending publish requests.
       List<String> messageIds = ApiFutures.allAsList(messageIdFutures).get();
 
       logger.info("Published " + messageIds.size() + " messages with batch settings.");
+    }
+  }
 
-      if (publisher != null) {
-        // When finished with the publisher, shutdown to free up resources.
-        publisher.shutdown();
-        publisher.awaitTermination(1, TimeUnit.MINUTES);
+  /*
+   * API to publish one shard descriptor per shard of the inventory of the parents. With
+   * sharded scanners there is one descriptor per scanner shard, delivered by its attribute.
+   * */
+  private static void publishShards(List<String> parents, int shardCount)
+      throws IOException, ExecutionException, InterruptedException {
+    if (ShardRing.isSharded() && shardCount != ShardRing.SHARD_COUNT) {
+      logger.warning(
+          "SHARD_MESSAGES " + shardCount + " differs from SHARD_COUNT " + ShardRing.SHARD_COUNT
+              + ", publishing one descriptor per scanner shard");
+      shardCount = ShardRing.SHARD_COUNT;
+    }
+    Publisher publisher = getPublisher();
+    List<ApiFuture<String>> messageIdFutures = new ArrayList<>();
+    try {
+      for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+        ScanEnvelope envelope = new ScanEnvelope();
+        envelope.setParents(parents);
+        envelope.setShardIndex(shardIndex);
+        envelope.setShardCount(shardCount);
+        messageIdFutures.add(
+            publish(publisher, gson.toJson(envelope), shardAttributes(shardIndex)));
       }
+    } finally {
+      List<String> messageIds = ApiFutures.allAsList(messageIdFutures).get();
+      logger.info("Published " + messageIds.size() + " shards of " + parents);
+    }
+  }
+
+  /*
+   * API to get the publisher of the topic shared by all requests on this instance
+   * */
+  private static Publisher getPublisher() throws IOException {
+    return PublisherHolder.getPublisher(TopicName.of(HOME_PROJECT_ID, TOPIC_NAME));
+  }
+
+  /*
+   * API to schedule publishing one message, messages get automatically batched
+   * */
+  private static ApiFuture<String> publish(
+      Publisher publisher, String message, Map<String, String> attributes) {
+    return PublisherHolder.publish(publisher, message, attributes);
+  }
+
+  /*
+   * API to split project Ids by scanner shard, so every message holds the Ids of one shard
+   * */
+  static Map<Integer, List<String>> splitByShard(List<String> projectIds) {
+    Map<Integer, List<String>> shards = new TreeMap<>();
+    for (String projectId : projectIds) {
+      shards
+          .computeIfAbsent(
+              ShardRing.shardOf(projectId, ShardRing.SHARD_COUNT), k -> new ArrayList<>())
+          .add(projectId);
+    }
+    return shards;
+  }
+
+  /*
+   * API to get the attributes of a message of a shard, none when scanners are not sharded
+   * */
+  private static Map<String, String> shardAttributes(int shard) {
+    return ShardRing.isSharded()
+        ? Map.of(ShardRing.SHARD_ATTRIBUTE, String.valueOf(shard))
+        : Collections.emptyMap();
+  }
+
+  /*
+   * API to group project Ids into messages of at most batchSize Ids
+   * */
+  static List<String> groupProjectIds(List<String> projectIds, int batchSize) {
+    List<String> messages = new ArrayList<>();
+    int size = Math.max(batchSize, 1);
+    for (int i = 0; i < projectIds.size(); i += size) {
+      messages.add(toMessage(projectIds.subList(i, Math.min(i + size, projectIds.size()))));
+    }
+    return messages;
+  }
+
+  /*
+   * API to build the message of a group of project Ids, comma separated or a JSON envelope
+   * */
+  static String toMessage(List<String> projectIds) {
+    if (!MESSAGE_ENVELOPE) {
+      return String.join(",", projectIds);
+    }
+    ScanEnvelope envelope = new ScanEnvelope();
+    envelope.setProjectIds(new ArrayList<>(projectIds));
+    return gson.toJson(envelope);
+  }
+
+  /*
+   * API to get the Cloud Resource Manager Service shared by all requests on this instance
+   * */
+  private static synchronized CloudResourceManager getCloudResourceManagerService()
+      throws IOException, GeneralSecurityException {
+    if (cloudResourceManager == null) {
+      cloudResourceManager = createCloudResourceManagerService();
     }
+    return cloudResourceManager;
   }
 
   /*
@@ -0,0 +1,155 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.cloud.resourcemanager.v3.Folder;
+import com.google.cloud.resourcemanager.v3.FoldersClient;
+import com.google.cloud.resourcemanager.v3.Project;
+import com.google.cloud.resourcemanager.v3.ProjectsClient;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import functions.eventpojos.InventoryProject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Discovers the projects below a set of organizations and folders with the Resource Manager
+ * v3 API. Each node lists its direct child projects and folders, and the child folders are
+ * walked in parallel with a bounded number of concurrent requests.
+ * */
+public class ProjectHierarchyTraversal implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(ProjectHierarchyTraversal.class.getName());
+
+  // Concurrent folder and project list requests while walking the hierarchy
+  public static final int TRAVERSAL_PARALLELISM = EnvironmentConfig.getInt("TRAVERSAL_PARALLELISM", 8);
+
+  private final FoldersClient foldersClient;
+  private final ProjectsClient projectsClient;
+  private final ExecutorService executor;
+
+  private final Queue<InventoryProject> projects = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pendingNodes = new AtomicInteger();
+  private final AtomicLong folderCount = new AtomicLong();
+
+  public ProjectHierarchyTraversal() throws IOException {
+    this(FoldersClient.create(), ProjectsClient.create());
+  }
+
+  ProjectHierarchyTraversal(FoldersClient foldersClient, ProjectsClient projectsClient) {
+    this.foldersClient = foldersClient;
+    this.projectsClient = projectsClient;
+    this.executor = Executors.newFixedThreadPool(Math.max(1, TRAVERSAL_PARALLELISM));
+  }
+
+  /*
+   * API to get the projects below the given parents, e.g. organizations/123 or folders/456.
+   * Subtrees that cannot be listed are logged and skipped.
+   * */
+  public List<InventoryProject> listProjects(List<String> parents) throws InterruptedException {
+    for (String parent : parents) {
+      submit(parent);
+    }
+    synchronized (pendingNodes) {
+      while (pendingNodes.get() > 0) {
+        pendingNodes.wait();
+      }
+    }
+    logger.info(
+        "Walked " + folderCount.get() + " folders below " + parents + ", received "
+            + projects.size() + " Project Ids");
+    return new ArrayList<>(projects);
+  }
+
+  private void submit(String parent) {
+    pendingNodes.incrementAndGet();
+    executor.execute(
+        () -> {
+          try {
+            visit(parent);
+          } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Error listing " + parent + ": " + e.getMessage(), e);
+          } finally {
+            synchronized (pendingNodes) {
+              if (pendingNodes.decrementAndGet() == 0) {
+                pendingNodes.notifyAll();
+              }
+            }
+          }
+        });
+  }
+
+  private void visit(String parent) {
+    for (Folder folder : foldersClient.listFolders(parent).iterateAll()) {
+      if (folder.getState() == Folder.State.ACTIVE) {
+        folderCount.incrementAndGet();
+        submit(folder.getName());
+      }
+    }
+    for (Project project : projectsClient.listProjects(parent).iterateAll()) {
+      InventoryProject listed = new InventoryProject();
+      listed.setProjectId(project.getProjectId());
+      listed.setState(project.getState().name());
+      listed.setLabels(new HashMap<>(project.getLabelsMap()));
+      projects.add(listed);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    foldersClient.close();
+    projectsClient.close();
+  }
+
+  /*
+   * API to build parent resource names from the organizations or folders field of a
+   * request. The field may be a JSON array or a string such as "[123, 456]" or "123".
+   * */
+  static List<String> parseParents(JsonElement field, String type) {
+    List<String> ids = new ArrayList<>();
+    if (field == null || field.isJsonNull()) {
+      return ids;
+    }
+    if (field.isJsonArray()) {
+      JsonArray array = field.getAsJsonArray();
+      for (JsonElement element : array) {
+        ids.add(element.getAsString());
+      }
+    } else {
+      String value = field.getAsString().replace("[", "").replace("]", "").replace("\"", "");
+      for (String id : value.split(",")) {
+        ids.add(id);
+      }
+    }
+
+    List<String> parents = new ArrayList<>();
+    for (String id : ids) {
+      String trimmed = id.trim();
+      if (!trimmed.isEmpty()) {
+        parents.add(trimmed.startsWith(type + "/") ? trimmed : type + "/" + trimmed);
+      }
+    }
+    return parents;
+  }
+}
@@ -0,0 +1,129 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.cloud.asset.v1.AssetServiceClient;
+import com.google.cloud.asset.v1.ResourceSearchResult;
+import com.google.cloud.asset.v1.SearchAllResourcesRequest;
+import com.google.protobuf.Value;
+import com.google.protobuf.util.Timestamps;
+import functions.eventpojos.InventoryProject;
+import functions.eventpojos.ProjectInventoryState;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/*
+ * Project inventory of a set of organizations and folders, persisted with StateStore.
+ * A refresh only searches Cloud Asset Inventory for projects updated since the previous
+ * refresh, which also covers created and deleted projects; unchanged projects are served
+ * from the persisted inventory. Projects moved out of the parents or purged after their
+ * deletion are no longer returned by the search, so they stay in the inventory until the
+ * next full search, at most INVENTORY_FULL_REFRESH_HOURS later.
+ * */
+public class ProjectInventory {
+  private static final Logger logger = Logger.getLogger(ProjectInventory.class.getName());
+
+  // Hours between full searches of the parents, incremental searches run in between. Bounds
+  // how long moved and purged projects stay in the inventory.
+  public static final int FULL_REFRESH_HOURS =
+      EnvironmentConfig.getInt("INVENTORY_FULL_REFRESH_HOURS", 24);
+
+  private static final String PROJECT_ASSET_TYPE = "cloudresourcemanager.googleapis.com/Project";
+  // Searched before the previous refresh time as the asset index is eventually consistent
+  private static final long REFRESH_OVERLAP_SECONDS = 600;
+  private static final int PAGE_SIZE = 500;
+
+  private ProjectInventory() {}
+
+  /*
+   * API to refresh the inventory of the parents and get their projects, which include the
+   * projects pending deletion until they are purged
+   * */
+  public static List<InventoryProject> listProjects(List<String> parents) throws IOException {
+    String name = stateName(parents);
+    long now = Instant.now().getEpochSecond();
+    ProjectInventoryState state = StateStore.read(name, ProjectInventoryState.class);
+    boolean fullRefresh =
+        state == null || now - state.getFullRefreshAt() >= FULL_REFRESH_HOURS * 3600L;
+    if (fullRefresh) {
+      state = new ProjectInventoryState();
+      state.setFullRefreshAt(now);
+    }
+
+    String query =
+        fullRefresh ? "" : "updateTime > " + (state.getRefreshedAt() - REFRESH_OVERLAP_SECONDS);
+    int updated = 0;
+    AssetServiceClient assetServiceClient = AssetServiceClientHolder.getAssetServiceClient();
+    for (String parent : parents) {
+      SearchAllResourcesRequest request =
+          SearchAllResourcesRequest.newBuilder()
+              .setScope(parent)
+              .addAssetTypes(PROJECT_ASSET_TYPE)
+              .setQuery(query)
+              .setPageSize(PAGE_SIZE)
+              .build();
+      for (ResourceSearchResult result :
+          assetServiceClient.searchAllResources(request).iterateAll()) {
+        InventoryProject project = toInventoryProject(result);
+        if (project.getProjectId() == null) {
+          continue;
+        }
+        state.getProjects().put(result.getName(), project);
+        updated++;
+      }
+    }
+    state.setRefreshedAt(now);
+    StateStore.write(name, state);
+
+    logger.info(
+        (fullRefresh ? "Full" : "Incremental") + " inventory refresh of " + parents + ": "
+            + updated + " projects updated, " + state.getProjects().size() + " projects");
+    return new ArrayList<>(state.getProjects().values());
+  }
+
+  /*
+   * API to get the projects of the persisted inventory of the parents without refreshing it,
+   * returns an empty list if the parents have no inventory yet
+   * */
+  public static List<InventoryProject> readProjects(List<String> parents) {
+    ProjectInventoryState state = StateStore.read(stateName(parents), ProjectInventoryState.class);
+    if (state == null) {
+      logger.warning("No project inventory of " + parents);
+      return new ArrayList<>();
+    }
+    return new ArrayList<>(state.getProjects().values());
+  }
+
+  private static InventoryProject toInventoryProject(ResourceSearchResult result) {
+    InventoryProject project = new InventoryProject();
+    Value projectId = result.getAdditionalAttributes().getFieldsOrDefault("projectId", null);
+    project.setProjectId(projectId == null ? null : projectId.getStringValue());
+    project.setState(result.getState());
+    project.setLabels(new HashMap<>(result.getLabelsMap()));
+    if (result.hasUpdateTime()) {
+      project.setUpdateTime(Timestamps.toString(result.getUpdateTime()));
+    }
+    return project;
+  }
+
+  private static String stateName(List<String> parents) {
+    // The same parents in any order share one inventory
+    return "inventory/" + Integer.toHexString(new TreeSet<>(parents).hashCode()) + ".json";
+  }
+}
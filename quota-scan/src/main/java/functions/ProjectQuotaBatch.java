@@ -0,0 +1,284 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import functions.eventpojos.ProjectQuota;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Columnar batch of scan results. Usage, maximum and limit are kept in parallel long
+ * arrays, label columns hold int codes into one dictionary of distinct strings, and the
+ * timestamp and threshold are shared by every row. A batch is filled by TimeSeriesDecoder
+ * and read directly by the sinks; ProjectQuota objects are only built on demand.
+ * Batches are not thread safe, except for the confirmation of written rows by the sinks.
+ * */
+public final class ProjectQuotaBatch {
+  private static final int NULL_CODE = -1;
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final String timestamp;
+  private final Integer threshold;
+
+  private final List<String> dictionary = new ArrayList<>();
+  private final HashMap<String, Integer> codes = new HashMap<>();
+
+  private int size;
+  private boolean complete = true;
+  // Rows the sink confirmed as written, and the action to run once all of them are
+  private int rowsWritten;
+  private Runnable writtenAction;
+  private int[] projectIds = new int[INITIAL_CAPACITY];
+  private int[] regions = new int[INITIAL_CAPACITY];
+  private int[] metrics = new int[INITIAL_CAPACITY];
+  private int[] apiMethods = new int[INITIAL_CAPACITY];
+  private int[] limitNames = new int[INITIAL_CAPACITY];
+  private int[] quotaTypes = new int[INITIAL_CAPACITY];
+  private long[] currentUsage = new long[INITIAL_CAPACITY];
+  private long[] maxUsage = new long[INITIAL_CAPACITY];
+  private long[] quotaLimit = new long[INITIAL_CAPACITY];
+
+  public ProjectQuotaBatch(String timestamp, Integer threshold) {
+    this.timestamp = timestamp;
+    this.threshold = threshold;
+  }
+
+  /*
+   * API to build a batch from ProjectQuota objects, rows must share timestamp and threshold
+   * */
+  public static ProjectQuotaBatch of(List<ProjectQuota> projectQuotas) {
+    ProjectQuota first = projectQuotas.isEmpty() ? null : projectQuotas.get(0);
+    ProjectQuotaBatch batch =
+        new ProjectQuotaBatch(
+            first == null ? null : first.getTimestamp(), first == null ? null : first.getThreshold());
+    for (ProjectQuota pq : projectQuotas) {
+      batch.add(
+          pq.getProjectId(),
+          pq.getRegion(),
+          pq.getMetric(),
+          pq.getApiMethod(),
+          pq.getLimitName(),
+          pq.getQuotaType(),
+          pq.getCurrentUsage() == null ? 0 : pq.getCurrentUsage(),
+          pq.getMaxUsage() == null ? 0 : pq.getMaxUsage(),
+          pq.getQuotaLimit() == null ? 0 : pq.getQuotaLimit());
+    }
+    return batch;
+  }
+
+  /*
+   * API to append a row, returns its index
+   * */
+  public int add(
+      String projectId,
+      String region,
+      String metric,
+      String apiMethod,
+      String limitName,
+      String quotaType,
+      long current,
+      long max,
+      long limit) {
+    if (size == currentUsage.length) {
+      grow();
+    }
+    set(size, projectId, region, metric, apiMethod, limitName, quotaType, current, max, limit);
+    return size++;
+  }
+
+  /*
+   * API to overwrite an existing row
+   * */
+  public void set(
+      int row,
+      String projectId,
+      String region,
+      String metric,
+      String apiMethod,
+      String limitName,
+      String quotaType,
+      long current,
+      long max,
+      long limit) {
+    projectIds[row] = encode(projectId);
+    regions[row] = encode(region);
+    metrics[row] = encode(metric);
+    apiMethods[row] = encode(apiMethod);
+    limitNames[row] = encode(limitName);
+    quotaTypes[row] = encode(quotaType);
+    currentUsage[row] = current;
+    maxUsage[row] = max;
+    quotaLimit[row] = limit;
+  }
+
+  private void grow() {
+    int capacity = currentUsage.length * 2;
+    projectIds = Arrays.copyOf(projectIds, capacity);
+    regions = Arrays.copyOf(regions, capacity);
+    metrics = Arrays.copyOf(metrics, capacity);
+    apiMethods = Arrays.copyOf(apiMethods, capacity);
+    limitNames = Arrays.copyOf(limitNames, capacity);
+    quotaTypes = Arrays.copyOf(quotaTypes, capacity);
+    currentUsage = Arrays.copyOf(currentUsage, capacity);
+    maxUsage = Arrays.copyOf(maxUsage, capacity);
+    quotaLimit = Arrays.copyOf(quotaLimit, capacity);
+  }
+
+  private int encode(String value) {
+    if (value == null) {
+      return NULL_CODE;
+    }
+    Integer code = codes.get(value);
+    if (code == null) {
+      code = dictionary.size();
+      dictionary.add(value);
+      codes.put(value, code);
+    }
+    return code;
+  }
+
+  private String decode(int code) {
+    return code == NULL_CODE ? null : dictionary.get(code);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /*
+   * API to flag a batch that is missing the results of a failed query
+   * */
+  public void markIncomplete() {
+    complete = false;
+  }
+
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /*
+   * API to run an action once the sink confirmed every row of the batch as written, right
+   * away for an empty batch. The action never runs if a row fails.
+   * */
+  public void whenWritten(Runnable action) {
+    synchronized (this) {
+      if (rowsWritten < size) {
+        writtenAction = action;
+        return;
+      }
+    }
+    action.run();
+  }
+
+  /*
+   * API for the sinks to confirm rows of the batch as written
+   * */
+  public void recordRowsWritten(int rows) {
+    Runnable action;
+    synchronized (this) {
+      rowsWritten += rows;
+      if (rowsWritten < size || writtenAction == null) {
+        return;
+      }
+      action = writtenAction;
+      writtenAction = null;
+    }
+    action.run();
+  }
+
+  public String getTimestamp() {
+    return timestamp;
+  }
+
+  public Integer getThreshold() {
+    return threshold;
+  }
+
+  public String getProjectId(int row) {
+    return decode(projectIds[row]);
+  }
+
+  public String getRegion(int row) {
+    return decode(regions[row]);
+  }
+
+  public String getMetric(int row) {
+    return decode(metrics[row]);
+  }
+
+  public String getApiMethod(int row) {
+    return decode(apiMethods[row]);
+  }
+
+  public String getLimitName(int row) {
+    return decode(limitNames[row]);
+  }
+
+  public String getQuotaType(int row) {
+    return decode(quotaTypes[row]);
+  }
+
+  public long getCurrentUsage(int row) {
+    return currentUsage[row];
+  }
+
+  public void setCurrentUsage(int row, long value) {
+    currentUsage[row] = value;
+  }
+
+  public long getMaxUsage(int row) {
+    return maxUsage[row];
+  }
+
+  public void setMaxUsage(int row, long value) {
+    maxUsage[row] = value;
+  }
+
+  public long getQuotaLimit(int row) {
+    return quotaLimit[row];
+  }
+
+  /*
+   * API to materialize one row, used for error reporting and callers that need objects
+   * */
+  public ProjectQuota get(int row) {
+    ProjectQuota projectQuota = new ProjectQuota();
+    projectQuota.setProjectId(getProjectId(row));
+    projectQuota.setTimestamp(timestamp);
+    projectQuota.setRegion(getRegion(row));
+    projectQuota.setMetric(getMetric(row));
+    projectQuota.setApiMethod(getApiMethod(row));
+    projectQuota.setLimitName(getLimitName(row));
+    projectQuota.setQuotaType(getQuotaType(row));
+    projectQuota.setCurrentUsage(currentUsage[row]);
+    projectQuota.setMaxUsage(maxUsage[row]);
+    projectQuota.setQuotaLimit(quotaLimit[row]);
+    projectQuota.setThreshold(threshold);
+    return projectQuota;
+  }
+
+  public List<ProjectQuota> toProjectQuotas() {
+    List<ProjectQuota> projectQuotas = new ArrayList<>(size);
+    for (int row = 0; row < size; row++) {
+      projectQuotas.add(get(row));
+    }
+    return projectQuotas;
+  }
+}
@@ -0,0 +1,43 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import functions.eventpojos.ProjectQuota;
+import java.util.List;
+
+/*
+ * Destination for the rows produced by a scan.
+ * */
+public interface ProjectQuotaSink extends AutoCloseable {
+
+  /*
+   * API to write the rows of a batch, returns once they have been sent or buffered by the sink
+   * */
+  void write(ProjectQuotaBatch batch);
+
+  /*
+   * API to write ProjectQuota rows, they are converted to a batch first
+   * */
+  default void write(List<ProjectQuota> projectQuotas) {
+    write(ProjectQuotaBatch.of(projectQuotas));
+  }
+
+  /*
+   * API to send the rows buffered by the sink, called before an invocation returns
+   * */
+  default void flush() {}
+
+  @Override
+  default void close() {}
+}
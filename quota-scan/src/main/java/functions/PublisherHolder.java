@@ -0,0 +1,120 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.TopicName;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.threeten.bp.Duration;
+
+/*
+ * Holds one Pub/Sub Publisher per topic shared by every request on this instance.
+ * Publishers are thread-safe and batch the messages of concurrent requests together. They
+ * are created on first use and shut down, flushing pending messages, when the JVM exits.
+ * */
+public final class PublisherHolder {
+  private static final Logger logger = Logger.getLogger(PublisherHolder.class.getName());
+
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+  private static final Map<TopicName, Publisher> publishers = new HashMap<>();
+  private static boolean shutdownHookRegistered;
+
+  private PublisherHolder() {}
+
+  /*
+   * API to get the shared publisher of a topic, creating it if needed
+   * */
+  public static synchronized Publisher getPublisher(TopicName topicName) throws IOException {
+    Publisher publisher = publishers.get(topicName);
+    if (publisher == null) {
+      publisher = createPublisher(topicName);
+      publishers.put(topicName, publisher);
+      logger.log(Level.INFO, "Created Publisher for " + topicName);
+      if (!shutdownHookRegistered) {
+        Runtime.getRuntime().addShutdownHook(new Thread(PublisherHolder::shutdown));
+        shutdownHookRegistered = true;
+      }
+    }
+    return publisher;
+  }
+
+  /*
+   * API to schedule publishing one message, messages get automatically batched
+   * */
+  public static ApiFuture<String> publish(Publisher publisher, String message) {
+    return publish(publisher, message, Collections.emptyMap());
+  }
+
+  /*
+   * API to schedule publishing one message with attributes
+   * */
+  public static ApiFuture<String> publish(
+      Publisher publisher, String message, Map<String, String> attributes) {
+    ByteString data = ByteString.copyFromUtf8(message);
+    PubsubMessage pubsubMessage =
+        PubsubMessage.newBuilder().setData(data).putAllAttributes(attributes).build();
+
+    // Once published, returns a server-assigned message id (unique within the topic)
+    return publisher.publish(pubsubMessage);
+  }
+
+  /*
+   * API to create a publisher bound to the topic with the batch settings used for project Ids
+   * */
+  private static Publisher createPublisher(TopicName topicName) throws IOException {
+    // Batch settings control how the publisher batches messages
+    long requestBytesThreshold = 5000L; // default : 1 byte
+    long messageCountBatchSize = 100L; // default : 1 message
+
+    Duration publishDelayThreshold = Duration.ofMillis(100); // default : 1 ms
+
+    // Publish request get triggered based on request size, messages count & time since last
+    // publish, whichever condition is met first.
+    BatchingSettings batchingSettings =
+        BatchingSettings.newBuilder()
+            .setElementCountThreshold(messageCountBatchSize)
+            .setRequestByteThreshold(requestBytesThreshold)
+            .setDelayThreshold(publishDelayThreshold)
+            .build();
+
+    // Create a publisher instance with default settings bound to the topic
+    return Publisher.newBuilder(topicName).setBatchingSettings(batchingSettings).build();
+  }
+
+  /*
+   * API to flush and close every shared publisher
+   * */
+  public static synchronized void shutdown() {
+    for (Publisher publisher : publishers.values()) {
+      try {
+        publisher.shutdown();
+        publisher.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    publishers.clear();
+  }
+}
@@ -0,0 +1,264 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiExceptions;
+import com.google.cloud.monitoring.v3.QueryServiceClient;
+import com.google.cloud.monitoring.v3.QueryServiceClient.QueryTimeSeriesPagedResponse;
+import com.google.monitoring.v3.QueryTimeSeriesRequest;
+import functions.ScanProjectQuotasHelper.QueryType;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Hedges Cloud Monitoring queries against tail latency. The latency of the first page of
+ * every query is kept per query type; with HEDGE_QUERIES, a query that has not answered
+ * after the HEDGE_PERCENTILE latency of its type is sent a second time and the first
+ * successful answer is used. A losing hedge is cancelled, a losing query runs to completion
+ * so that its latency is still recorded and slow queries keep the percentile up.
+ *
+ * Hedges are capped at HEDGE_MAX_PERCENT of the queries of the instance and are only sent
+ * when the Monitoring rate limiter has a permit to spare, so they cannot add to quota
+ * pressure. Later pages of a response are fetched without hedging.
+ * */
+public final class QueryHedger {
+  private static final Logger logger = Logger.getLogger(QueryHedger.class.getName());
+
+  // Send a duplicate of queries slower than the percentile latency of their query type
+  public static final boolean HEDGE_QUERIES = EnvironmentConfig.getBoolean("HEDGE_QUERIES", false);
+  // Latency percentile after which a query is hedged
+  public static final int HEDGE_PERCENTILE = EnvironmentConfig.getInt("HEDGE_PERCENTILE", 95);
+  // Hedges allowed per 100 queries
+  public static final int HEDGE_MAX_PERCENT = EnvironmentConfig.getInt("HEDGE_MAX_PERCENT", 5);
+
+  // Latencies kept per query type, and needed before queries of the type are hedged
+  private static final int LATENCY_WINDOW = 1000;
+  private static final int MIN_SAMPLES = 50;
+  // Latencies recorded before the sorted copy a percentile is read from is refreshed
+  private static final int SORT_INTERVAL = 50;
+
+  private static final Map<QueryType, LatencyWindow> latencies = new EnumMap<>(QueryType.class);
+  private static final AtomicLong queries = new AtomicLong();
+  private static final AtomicLong hedges = new AtomicLong();
+
+  private static final ScheduledExecutorService hedgeScheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "query-hedge");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  static {
+    for (QueryType queryType : QueryType.values()) {
+      latencies.put(queryType, new LatencyWindow(LATENCY_WINDOW));
+    }
+  }
+
+  private QueryHedger() {}
+
+  /*
+   * API to run a query and wait for its first page, hedged when it is slow
+   * */
+  public static QueryTimeSeriesPagedResponse query(
+      QueryServiceClient queryServiceClient, QueryType queryType, QueryTimeSeriesRequest request) {
+    return ApiExceptions.callAndTranslateApiException(
+        futureCall(queryServiceClient, queryType, request));
+  }
+
+  /*
+   * API to start a query, hedged when it is slow. The future completes with the first
+   * successful answer, or with the error of the last call to fail.
+   * */
+  public static ApiFuture<QueryTimeSeriesPagedResponse> futureCall(
+      QueryServiceClient queryServiceClient, QueryType queryType, QueryTimeSeriesRequest request) {
+    LatencyWindow window = latencies.get(queryType);
+    long start = System.nanoTime();
+    queries.incrementAndGet();
+    HedgedCall call = new HedgedCall(queryServiceClient, request, window, start);
+    call.send();
+
+    long delayNanos = HEDGE_QUERIES ? window.percentile(HEDGE_PERCENTILE) : -1;
+    if (delayNanos >= 0) {
+      call.schedule(delayNanos);
+    }
+    return call.result;
+  }
+
+  private static boolean reserveHedge() {
+    // Only hedge within the share of traffic and with a permit the scans do not need
+    if (!isWithinHedgeShare(hedges.get(), queries.get())) {
+      return false;
+    }
+    if (!AdaptiveRateLimiter.MONITORING.tryAcquire()) {
+      return false;
+    }
+    hedges.incrementAndGet();
+    return true;
+  }
+
+  /*
+   * API to check whether one more hedge stays within HEDGE_MAX_PERCENT of the queries
+   * */
+  static boolean isWithinHedgeShare(long hedges, long queries) {
+    return (hedges + 1) * 100 <= queries * HEDGE_MAX_PERCENT;
+  }
+
+  /*
+   * A query and its hedge, the first successful answer completes the result
+   * */
+  private static final class HedgedCall {
+    private final QueryServiceClient queryServiceClient;
+    private final QueryTimeSeriesRequest request;
+    private final LatencyWindow window;
+    private final long start;
+    private final SettableApiFuture<QueryTimeSeriesPagedResponse> result =
+        SettableApiFuture.create();
+
+    private ApiFuture<QueryTimeSeriesPagedResponse> hedge;
+    private ScheduledFuture<?> timer;
+    private int outstanding;
+
+    HedgedCall(
+        QueryServiceClient queryServiceClient,
+        QueryTimeSeriesRequest request,
+        LatencyWindow window,
+        long start) {
+      this.queryServiceClient = queryServiceClient;
+      this.request = request;
+      this.window = window;
+      this.start = start;
+    }
+
+    synchronized void send() {
+      call(true);
+    }
+
+    synchronized void schedule(long delayNanos) {
+      if (!result.isDone()) {
+        timer = hedgeScheduler.schedule(this::sendHedge, delayNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    private synchronized void sendHedge() {
+      if (result.isDone() || !reserveHedge()) {
+        return;
+      }
+      logger.log(Level.FINE, "Hedging query of " + request.getName());
+      hedge = call(false);
+    }
+
+    private ApiFuture<QueryTimeSeriesPagedResponse> call(boolean isPrimary) {
+      outstanding++;
+      ApiFuture<QueryTimeSeriesPagedResponse> future =
+          queryServiceClient.queryTimeSeriesPagedCallable().futureCall(request);
+      ApiFutures.addCallback(
+          future,
+          new ApiFutureCallback<QueryTimeSeriesPagedResponse>() {
+            @Override
+            public void onSuccess(QueryTimeSeriesPagedResponse response) {
+              succeeded(response, isPrimary);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+              failed(error);
+            }
+          },
+          Runnable::run);
+      return future;
+    }
+
+    private synchronized void succeeded(
+        QueryTimeSeriesPagedResponse response, boolean isPrimary) {
+      outstanding--;
+      // Only the query is timed, a hedge that wins would hide how slow the query was
+      if (isPrimary) {
+        window.record(System.nanoTime() - start);
+      }
+      if (result.set(response)) {
+        cancelPending();
+      }
+    }
+
+    private synchronized void failed(Throwable error) {
+      outstanding--;
+      // A hedge that was cancelled or failed leaves the other call to answer
+      if (outstanding == 0 && result.setException(error)) {
+        cancelPending();
+      }
+    }
+
+    private void cancelPending() {
+      if (timer != null) {
+        timer.cancel(false);
+      }
+      if (hedge != null && !hedge.isDone()) {
+        hedge.cancel(true);
+      }
+    }
+  }
+
+  /*
+   * Ring of the latest latencies of a query type. Percentiles are read from a sorted copy
+   * refreshed every SORT_INTERVAL latencies.
+   * */
+  static final class LatencyWindow {
+    private final long[] samples;
+    private int size;
+    private int next;
+    private long[] sorted;
+    private int recordedSinceSort;
+
+    LatencyWindow(int capacity) {
+      samples = new long[capacity];
+    }
+
+    synchronized void record(long nanos) {
+      samples[next] = nanos;
+      next = (next + 1) % samples.length;
+      size = Math.min(size + 1, samples.length);
+      recordedSinceSort++;
+    }
+
+    /*
+     * API to get a latency percentile in nanoseconds, -1 until enough latencies are known
+     * */
+    synchronized long percentile(int percentile) {
+      if (size < MIN_SAMPLES) {
+        return -1;
+      }
+      if (sorted == null || recordedSinceSort >= SORT_INTERVAL) {
+        sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        recordedSinceSort = 0;
+      }
+      int index =
+          (int) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * sorted.length) - 1;
+      return sorted[Math.max(0, index)];
+    }
+  }
+}
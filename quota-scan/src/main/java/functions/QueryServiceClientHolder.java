@@ -0,0 +1,101 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.api.gax.grpc.ChannelPoolSettings;
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
+import com.google.cloud.monitoring.v3.QueryServiceClient;
+import com.google.cloud.monitoring.v3.QueryServiceSettings;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Holds the Cloud Monitoring QueryServiceClient shared by every scan on this instance.
+ * The client is created on first use, kept while the function instance stays warm
+ * and shut down when the JVM exits.
+ * */
+public final class QueryServiceClientHolder {
+  private static final Logger logger = Logger.getLogger(QueryServiceClientHolder.class.getName());
+
+  // Cloud Function Environment variable for the number of gRPC channels in the client pool
+  public static final int CHANNEL_POOL_SIZE = EnvironmentConfig.getInt("QUERY_CHANNEL_POOL_SIZE", 1);
+
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+  private static QueryServiceClient queryServiceClient;
+  private static boolean shutdownHookRegistered;
+  // Client set by tests and load tests, used instead of creating one
+  private static QueryServiceClient overrideClient;
+
+  private QueryServiceClientHolder() {}
+
+  /*
+   * API to get the shared QueryServiceClient, creating it if needed
+   * */
+  public static synchronized QueryServiceClient getQueryServiceClient() throws IOException {
+    if (overrideClient != null) {
+      return overrideClient;
+    }
+    if (queryServiceClient == null || queryServiceClient.isShutdown()) {
+      queryServiceClient = QueryServiceClient.create(createQueryServiceSettings());
+      logger.log(Level.INFO, "Created QueryServiceClient with channel pool size " + CHANNEL_POOL_SIZE);
+      if (!shutdownHookRegistered) {
+        Runtime.getRuntime().addShutdownHook(new Thread(QueryServiceClientHolder::shutdown));
+        shutdownHookRegistered = true;
+      }
+    }
+    return queryServiceClient;
+  }
+
+  /*
+   * API to make every scan use the given client, e.g. one connected to an in-process
+   * fake QueryService. Passing null restores the default client. The caller owns the client.
+   * */
+  public static synchronized void setQueryServiceClient(QueryServiceClient client) {
+    overrideClient = client;
+  }
+
+  /*
+   * API to build client settings with a statically sized gRPC channel pool
+   * */
+  static QueryServiceSettings createQueryServiceSettings() throws IOException {
+    InstantiatingGrpcChannelProvider channelProvider =
+        QueryServiceSettings.defaultGrpcTransportProviderBuilder()
+            .setChannelPoolSettings(ChannelPoolSettings.staticallySized(CHANNEL_POOL_SIZE))
+            .build();
+    return QueryServiceSettings.newBuilder().setTransportChannelProvider(channelProvider).build();
+  }
+
+  /*
+   * API to close the shared client and wait for in-flight calls to finish
+   * */
+  public static synchronized void shutdown() {
+    if (queryServiceClient == null) {
+      return;
+    }
+    try {
+      queryServiceClient.shutdown();
+      if (!queryServiceClient.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        queryServiceClient.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      queryServiceClient.shutdownNow();
+      Thread.currentThread().interrupt();
+    } finally {
+      queryServiceClient = null;
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import static functions.QueryServiceClientHolder.getQueryServiceClient;
+
+import com.google.cloud.monitoring.v3.QueryServiceClient;
+import com.google.cloud.monitoring.v3.QueryServiceClient.QueryTimeSeriesPage;
+import com.google.cloud.monitoring.v3.QueryServiceClient.QueryTimeSeriesPagedResponse;
+import com.google.monitoring.v3.QueryTimeSeriesRequest;
+import com.google.monitoring.v3.TimeSeriesData;
+import functions.ScanProjectQuotasHelper.QueryType;
+import functions.ScanProjectQuotasHelper.Quotas;
+import functions.eventpojos.GCPProject;
+import functions.eventpojos.QuotaLimitState;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Caches the quota limits of a project or project batch between scans, so the scan queries
+ * only fetch usage. Limits are keyed by project, location and quota metric, the labels the
+ * usage and limit series are joined on, and then by limit name.
+ *
+ * The limits are fetched with one query when they are older than LIMIT_CACHE_TTL_HOURS, and
+ * again when a usage series is not in the cache, at most once per scan. Usage series that
+ * still have no limit are cached without one until the limits expire. The cache is kept
+ * with StateStore and is only used when the state bucket is configured.
+ * */
+public class QuotaLimitCache {
+  private static final Logger logger = Logger.getLogger(QuotaLimitCache.class.getName());
+
+  // Hours the cached limits are used before they are fetched again, 0 joins the limits in
+  // every scan query
+  public static final int LIMIT_CACHE_TTL_HOURS =
+      EnvironmentConfig.getInt("LIMIT_CACHE_TTL_HOURS", 0);
+
+  private final GCPProject gcpProject;
+  private final String name;
+  private final QuotaLimitState state;
+
+  private boolean fetched;
+  private boolean changed;
+
+  QuotaLimitCache(GCPProject gcpProject, String name, QuotaLimitState state) {
+    this.gcpProject = gcpProject;
+    this.name = name;
+    this.state = state;
+  }
+
+  /*
+   * API to check whether scans use cached limits
+   * */
+  public static boolean isEnabled() {
+    return LIMIT_CACHE_TTL_HOURS > 0 && StateStore.isEnabled();
+  }
+
+  /*
+   * API to load the cached limits of a project or project batch, fetching them if they
+   * expired. Returns null if they cannot be fetched, the scan then joins the limits in its
+   * queries.
+   * */
+  public static QuotaLimitCache load(GCPProject gcpProject) {
+    String name = stateName(gcpProject);
+    QuotaLimitState state = StateStore.read(name, QuotaLimitState.class);
+    QuotaLimitCache cache =
+        new QuotaLimitCache(gcpProject, name, state == null ? new QuotaLimitState() : state);
+    long age = Instant.now().getEpochSecond() - cache.state.getFetchedAt();
+    if (age >= LIMIT_CACHE_TTL_HOURS * 3600L && !cache.refresh(Collections.emptyList())) {
+      return null;
+    }
+    return cache;
+  }
+
+  private static String stateName(GCPProject gcpProject) {
+    if (gcpProject.getProjectIds() == null || gcpProject.getProjectIds().isEmpty()) {
+      return "limits/" + gcpProject.getProjectId() + ".json";
+    }
+    return "limits/" + gcpProject.getProjectId() + "-"
+        + Integer.toHexString(gcpProject.getProjectIds().hashCode()) + ".json";
+  }
+
+  /*
+   * API to get the limits by limit name that apply to a usage series of a query type.
+   * Returns null if the series is not in the cache.
+   * */
+  public synchronized Map<String, Long> get(QueryType queryType, String seriesKey) {
+    Map<String, Long> limits = state.getLimits().get(seriesKey);
+    if (limits == null) {
+      return null;
+    }
+    Map<String, Long> applicable = new HashMap<>();
+    for (Map.Entry<String, Long> limit : limits.entrySet()) {
+      if (appliesTo(queryType, limit.getKey())) {
+        applicable.put(limit.getKey(), limit.getValue());
+      }
+    }
+    return applicable;
+  }
+
+  /*
+   * API to fetch the limits again for usage series that are not in the cache, unless they
+   * were already fetched by this scan. The series that still have no limit are cached
+   * without one. Returns false if the limits could not be fetched.
+   * */
+  public synchronized boolean refresh(Collection<String> seriesKeys) {
+    if (!fetched) {
+      try {
+        fetch();
+      } catch (IOException | RuntimeException e) {
+        logger.log(
+            Level.WARNING,
+            "Error fetching quota limits for project: " + gcpProject.getProjectName()
+                + " " + e.getMessage(),
+            e);
+        return false;
+      }
+    }
+    for (String seriesKey : seriesKeys) {
+      if (state.getLimits().putIfAbsent(seriesKey, new HashMap<>()) == null) {
+        changed = true;
+      }
+    }
+    return true;
+  }
+
+  private void fetch() throws IOException {
+    QueryServiceClient queryServiceClient = getQueryServiceClient();
+    QueryTimeSeriesRequest request =
+        QueryTimeSeriesRequest.newBuilder()
+            .setName(gcpProject.getProjectName())
+            .setQuery(
+                ScanProjectQuotasHelper.formatMql(ScanProjectQuotasHelper.MQL_LIMIT, gcpProject))
+            .build();
+    QueryTimeSeriesPagedResponse response =
+        AdaptiveRateLimiter.MONITORING.call(() -> queryServiceClient.queryTimeSeries(request));
+    TimeSeriesDecoder decoder =
+        TimeSeriesDecoder.compile(
+            response.getPage().getResponse().getTimeSeriesDescriptor(), Quotas.ALLOCATION);
+
+    Map<String, Map<String, Long>> limits = new HashMap<>();
+    int count = 0;
+    for (QueryTimeSeriesPage page = response.getPage();
+        page != null;
+        page = page.hasNextPage()
+            ? ScanProjectQuotasHelper.nextPage(queryServiceClient, request, page)
+            : null) {
+      for (TimeSeriesData data : page.getValues()) {
+        limits
+            .computeIfAbsent(decoder.seriesKey(data), key -> new HashMap<>())
+            .put(decoder.limitName(data), decoder.limit(data));
+        count++;
+      }
+    }
+    state.setLimits(limits);
+    state.setFetchedAt(Instant.now().getEpochSecond());
+    fetched = true;
+    changed = true;
+    logger.info("Fetched " + count + " quota limits for project: " + gcpProject.getProjectName());
+  }
+
+  /*
+   * API to check whether a limit is joined with the usage of a query type, the same split
+   * of limit names as the limit filters of the joined queries
+   * */
+  static boolean appliesTo(QueryType queryType, String limitName) {
+    boolean bandwidth =
+        limitName.contains("GoogleEgressBandwidth") || limitName.contains("EGRESS-BANDWIDTH");
+    boolean daily = limitName.contains("PerDay") || limitName.contains("Qpd");
+    switch (queryType) {
+      case QPM:
+        return !bandwidth && !daily;
+      case QPS:
+        return bandwidth;
+      case QPD:
+        return daily;
+      default:
+        return true;
+    }
+  }
+
+  /*
+   * API to persist the limits if this scan changed them
+   * */
+  public synchronized void save() {
+    if (changed) {
+      StateStore.write(name, state);
+      changed = false;
+    }
+  }
+}
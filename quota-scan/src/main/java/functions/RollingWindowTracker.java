@@ -0,0 +1,200 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.gson.Gson;
+import functions.ScanProjectQuotasHelper.QueryType;
+import functions.eventpojos.GCPProject;
+import functions.eventpojos.RollingWindowState;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Keeps the rolling window maximum of every series between scans, so a scan only has to
+ * query the data since the last checkpoint of each query type and merge it in.
+ *
+ * ALLOCATION and QPM keep seven daily buckets of maxima, QPS keeps 24 hourly buckets and
+ * QPD keeps seven daily sums. Without a usable checkpoint the full window is queried and
+ * its maximum is recorded in the current bucket, so it is retained a little longer than
+ * the quota system would.
+ *
+ * A scan saves its tracker once the sink confirmed all rows of its batch as written, so a
+ * failed write leaves the previous checkpoints and the next scan queries the interval again.
+ * */
+public class RollingWindowTracker {
+  // Extra time queried before the checkpoint so late points are not missed
+  private static final long CHECKPOINT_OVERLAP_SECONDS = 120;
+  private static final long HOUR_SECONDS = 3600;
+  private static final long DAY_SECONDS = 86400;
+
+  private static final Gson gson = new Gson();
+  // States by name, only kept when the local cache is enabled
+  private static volatile Map<String, String> localCache;
+
+  private final String name;
+  private final RollingWindowState state;
+  private final long now;
+
+  RollingWindowTracker(String name, RollingWindowState state, long now) {
+    this.name = name;
+    this.state = state;
+    this.now = now;
+  }
+
+  /*
+   * API to load the persisted state of a project or project batch
+   * */
+  public static RollingWindowTracker load(GCPProject gcpProject) {
+    String name = stateName(gcpProject);
+    String cached = localCache == null ? null : localCache.get(name);
+    RollingWindowState state =
+        cached != null
+            ? gson.fromJson(cached, RollingWindowState.class)
+            : StateStore.read(name, RollingWindowState.class);
+    return new RollingWindowTracker(
+        name, state == null ? new RollingWindowState() : state, Instant.now().getEpochSecond());
+  }
+
+  public void save() {
+    // Forget series that have not been seen for a whole window
+    for (Iterator<Map.Entry<String, Map<Long, Long>>> it = state.getBuckets().entrySet().iterator();
+        it.hasNext(); ) {
+      Map.Entry<String, Map<Long, Long>> series = it.next();
+      QueryType queryType = QueryType.valueOf(series.getKey().substring(0, series.getKey().indexOf('|')));
+      windowMax(queryType, series.getValue());
+      if (series.getValue().isEmpty()) {
+        it.remove();
+      }
+    }
+    StateStore.write(name, state);
+    if (localCache != null) {
+      localCache.put(name, gson.toJson(state));
+    }
+  }
+
+  /*
+   * API to keep the saved states in memory, for a process that is the only scanner of its
+   * projects. Each load gets its own copy, so concurrent scans do not share a state.
+   * */
+  public static synchronized void enableLocalCache() {
+    if (localCache == null) {
+      localCache = new ConcurrentHashMap<>();
+    }
+  }
+
+  private static String stateName(GCPProject gcpProject) {
+    if (gcpProject.getProjectIds() == null || gcpProject.getProjectIds().isEmpty()) {
+      return "rolling-window/" + gcpProject.getProjectId() + ".json";
+    }
+    return "rolling-window/" + gcpProject.getProjectId() + "-"
+        + Integer.toHexString(gcpProject.getProjectIds().hashCode()) + ".json";
+  }
+
+  /*
+   * API to get the window to query for a query type, 0 if the full window has to be queried
+   * */
+  public long getIncrementalWindowSeconds(QueryType queryType) {
+    Long checkpoint = state.getCheckpoints().get(queryType.name());
+    if (checkpoint == null || checkpoint > now) {
+      return 0;
+    }
+    long window = now - checkpoint + CHECKPOINT_OVERLAP_SECONDS;
+    return window < windowSeconds(queryType) ? window : 0;
+  }
+
+  /*
+   * API to get the number of days of daily sums to query for QPD, 0 for the full week
+   * */
+  public int getIncrementalDays(QueryType queryType) {
+    long window = getIncrementalWindowSeconds(queryType);
+    if (window == 0) {
+      return 0;
+    }
+    long days = now / DAY_SECONDS - (now - window) / DAY_SECONDS + 1;
+    return (int) Math.min(days, windowSeconds(queryType) / DAY_SECONDS);
+  }
+
+  /*
+   * API to record that a query type was scanned up to now
+   * */
+  public void checkpoint(QueryType queryType) {
+    state.getCheckpoints().put(queryType.name(), now);
+  }
+
+  /*
+   * API to merge the maximum observed since the checkpoint into the series window and
+   * return the maximum over the whole window
+   * */
+  public long mergeMax(QueryType queryType, ProjectQuotaBatch batch, int row, long value) {
+    Map<Long, Long> buckets = getBuckets(queryType, batch, row);
+    buckets.merge(now / bucketSeconds(queryType), value, Math::max);
+    return windowMax(queryType, buckets);
+  }
+
+  /*
+   * API to set the value of one bucket, used for the QPD daily sums
+   * */
+  public void putBucket(QueryType queryType, ProjectQuotaBatch batch, int row, long bucket, long value) {
+    getBuckets(queryType, batch, row).put(bucket, value);
+  }
+
+  public long getBucket(QueryType queryType, ProjectQuotaBatch batch, int row, long bucket) {
+    return getBuckets(queryType, batch, row).getOrDefault(bucket, 0L);
+  }
+
+  public long getWindowMax(QueryType queryType, ProjectQuotaBatch batch, int row) {
+    return windowMax(queryType, getBuckets(queryType, batch, row));
+  }
+
+  private Map<Long, Long> getBuckets(QueryType queryType, ProjectQuotaBatch batch, int row) {
+    String key =
+        String.join(
+            "|",
+            queryType.name(),
+            String.valueOf(batch.getProjectId(row)),
+            String.valueOf(batch.getRegion(row)),
+            String.valueOf(batch.getMetric(row)),
+            String.valueOf(batch.getLimitName(row)),
+            String.valueOf(batch.getApiMethod(row)));
+    return state.getBuckets().computeIfAbsent(key, k -> new HashMap<>());
+  }
+
+  /*
+   * Drops buckets that left the window and returns the maximum of the remaining ones
+   * */
+  private long windowMax(QueryType queryType, Map<Long, Long> buckets) {
+    long firstBucket = (now - windowSeconds(queryType)) / bucketSeconds(queryType) + 1;
+    long max = 0;
+    for (Iterator<Map.Entry<Long, Long>> it = buckets.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Long, Long> bucket = it.next();
+      if (bucket.getKey() < firstBucket) {
+        it.remove();
+      } else {
+        max = Math.max(max, bucket.getValue());
+      }
+    }
+    return max;
+  }
+
+  static long windowSeconds(QueryType queryType) {
+    return queryType == QueryType.QPS ? DAY_SECONDS : 7 * DAY_SECONDS;
+  }
+
+  static long bucketSeconds(QueryType queryType) {
+    return queryType == QueryType.QPS ? HOUR_SECONDS : DAY_SECONDS;
+  }
+}
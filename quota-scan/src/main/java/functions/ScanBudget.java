@@ -0,0 +1,178 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.gson.Gson;
+import com.google.pubsub.v1.TopicName;
+import functions.ScanProjectQuotasHelper.QueryType;
+import functions.ScanProjectQuotasHelper.Quotas;
+import functions.eventpojos.GCPProject;
+import functions.eventpojos.ScanContinuation;
+import functions.eventpojos.ScanEnvelope;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/*
+ * Time budget of one scan invocation. Scans check the deadline before each query and each
+ * page of a response, and hand over what they could not finish: projects that were not
+ * started, the queries left of a project and the page token of a query stopped between
+ * pages. The rest is published as a continuation message to the scan topic, so a large
+ * scan finishes in bounded chunks instead of being retried from the start after a timeout.
+ *
+ * The deadline is FUNCTION_TIMEOUT_SEC after the invocation started, less
+ * SCAN_BUDGET_MARGIN_SEC to load the last results and publish the continuation. A partial
+ * scan is handed over at most SCAN_MAX_CONTINUATIONS times, so a project that never
+ * finishes within one budget is dropped instead of being published forever.
+ * */
+public class ScanBudget {
+  private static final Logger logger = Logger.getLogger(ScanBudget.class.getName());
+
+  // Timeout of the scan function, 0 scans without a time budget
+  public static final int FUNCTION_TIMEOUT_SEC =
+      EnvironmentConfig.getInt("FUNCTION_TIMEOUT_SEC", 0);
+  // Seconds kept before the timeout to load results and publish the continuation
+  public static final int SCAN_BUDGET_MARGIN_SEC =
+      EnvironmentConfig.getInt("SCAN_BUDGET_MARGIN_SEC", 60);
+  // Continuation messages a partial scan can be handed over in before it is dropped
+  public static final int SCAN_MAX_CONTINUATIONS =
+      EnvironmentConfig.getInt("SCAN_MAX_CONTINUATIONS", 10);
+  // Topic and project continuation messages are published to, the topic the scans are read from
+  private static final String TOPIC_NAME = System.getenv("PUBLISH_TOPIC");
+  private static final String HOME_PROJECT_ID = System.getenv("HOME_PROJECT");
+
+  private static final Gson gson = new Gson();
+
+  private final long deadlineNanos;
+  private final List<String> deferredProjectIds = new ArrayList<>();
+  private final List<ScanContinuation> continuations = new ArrayList<>();
+
+  ScanBudget(long deadlineNanos) {
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  /*
+   * API to start the budget of an invocation. Returns null if scans have no time budget or
+   * continuations cannot be published.
+   * */
+  public static ScanBudget start() {
+    if (FUNCTION_TIMEOUT_SEC <= 0 || TOPIC_NAME == null || HOME_PROJECT_ID == null) {
+      return null;
+    }
+    long budgetSeconds = Math.max(1, FUNCTION_TIMEOUT_SEC - SCAN_BUDGET_MARGIN_SEC);
+    return new ScanBudget(System.nanoTime() + TimeUnit.SECONDS.toNanos(budgetSeconds));
+  }
+
+  /*
+   * API to check whether the budget is spent and no new work should be started
+   * */
+  public boolean isExpired() {
+    return System.nanoTime() - deadlineNanos >= 0;
+  }
+
+  /*
+   * API to hand over a project or project batch that was not started
+   * */
+  public synchronized void defer(GCPProject gcpProject) {
+    if (gcpProject.getContinuation() != null) {
+      continuations.add(gcpProject.getContinuation());
+    } else if (gcpProject.getProjectIds() != null && !gcpProject.getProjectIds().isEmpty()) {
+      deferredProjectIds.addAll(gcpProject.getProjectIds());
+    } else {
+      deferredProjectIds.add(gcpProject.getProjectId());
+    }
+  }
+
+  /*
+   * API to hand over the queries left of a project or project batch. Returns false if the
+   * scan was already handed over SCAN_MAX_CONTINUATIONS times, the queries left are dropped.
+   * */
+  public synchronized boolean defer(ScanContinuation continuation) {
+    if (continuation.getHops() > SCAN_MAX_CONTINUATIONS) {
+      logger.warning(
+          "Dropping the scan of project " + continuation.getProjectId() + " after "
+              + SCAN_MAX_CONTINUATIONS + " continuations, queries left: "
+              + continuation.getQueryTypes());
+      return false;
+    }
+    continuations.add(continuation);
+    return true;
+  }
+
+  /*
+   * API to create an empty continuation of a project or project batch, one hop after the
+   * continuation the scan was resumed from
+   * */
+  static ScanContinuation continuationOf(GCPProject gcpProject) {
+    ScanContinuation continuation = new ScanContinuation();
+    continuation.setProjectId(gcpProject.getProjectId());
+    continuation.setProjectIds(gcpProject.getProjectIds());
+    ScanContinuation previous = gcpProject.getContinuation();
+    continuation.setHops(previous == null ? 1 : previous.getHops() + 1);
+    return continuation;
+  }
+
+  /*
+   * API to check whether a query is still to run for a project, every query is for a scan
+   * that is not resumed from a continuation
+   * */
+  static boolean isPending(GCPProject gcpProject, QueryType queryType) {
+    ScanContinuation continuation = gcpProject.getContinuation();
+    return continuation == null || continuation.getQueryTypes().contains(queryType.name());
+  }
+
+  /*
+   * API to check whether any query of a quota type is still to run for a project
+   * */
+  static boolean isPending(GCPProject gcpProject, Quotas quota) {
+    for (QueryType queryType : QueryType.values()) {
+      if (queryType.getQuota() == quota && isPending(gcpProject, queryType)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * API to publish the work left as one continuation message, if any
+   * */
+  public synchronized void publish()
+      throws IOException, ExecutionException, InterruptedException {
+    if (deferredProjectIds.isEmpty() && continuations.isEmpty()) {
+      return;
+    }
+    ScanEnvelope envelope = new ScanEnvelope();
+    envelope.setProjectIds(deferredProjectIds);
+    envelope.setContinuations(continuations);
+    // Sharded scanners only receive their shard, the projects of a message stay in its shard
+    Map<String, String> attributes =
+        ShardRing.isSharded()
+            ? Collections.singletonMap(
+                ShardRing.SHARD_ATTRIBUTE, String.valueOf(ShardRing.SHARD_INDEX))
+            : Collections.emptyMap();
+    PublisherHolder.publish(
+            PublisherHolder.getPublisher(TopicName.of(HOME_PROJECT_ID, TOPIC_NAME)),
+            gson.toJson(envelope),
+            attributes)
+        .get();
+    logger.info(
+        "Time budget spent, published a continuation with " + deferredProjectIds.size()
+            + " projects and " + continuations.size() + " partial scans");
+  }
+}
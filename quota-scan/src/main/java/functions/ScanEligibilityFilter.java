@@ -0,0 +1,177 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import functions.eventpojos.GCPProject;
+import functions.eventpojos.InventoryProject;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/*
+ * Pre-filter of the listed projects that drops the ones not worth scanning before their Ids
+ * are published: projects in an excluded lifecycle state, projects that do not match the
+ * label rules, and projects whose previous scan returned no time series.
+ *
+ * The negative cache is a marker object per project written by the scan function. Markers
+ * younger than ZERO_SERIES_CACHE_HOURS skip the project; expired markers are deleted when the
+ * project is published again, and the next empty scan writes a new one.
+ * */
+public class ScanEligibilityFilter {
+  private static final Logger logger = Logger.getLogger(ScanEligibilityFilter.class.getName());
+
+  // Lifecycle states of the projects to scan, projects without a known state are kept
+  public static final List<String> SCAN_LIFECYCLE_STATES = getStates();
+  // Label rules of the projects to scan, e.g. "env=prod,quota-scan". When set, a project
+  // must match one of them. A rule without a value matches any value of the key.
+  public static final List<String> SCAN_LABEL_INCLUDE = EnvironmentConfig.getList("SCAN_LABEL_INCLUDE");
+  // Label rules of the projects to skip, a project matching one of them is not scanned
+  public static final List<String> SCAN_LABEL_EXCLUDE = EnvironmentConfig.getList("SCAN_LABEL_EXCLUDE");
+  // Hours a project whose scan returned no time series is skipped, 0 disables the cache
+  public static final int ZERO_SERIES_CACHE_HOURS = EnvironmentConfig.getInt("ZERO_SERIES_CACHE_HOURS", 0);
+
+  private static final String ZERO_SERIES_PREFIX = "zero-series/";
+
+  private final Map<String, Long> zeroSeriesProjects;
+  private final Set<String> expiredProjects = new HashSet<>();
+  private final long cacheMillis = ZERO_SERIES_CACHE_HOURS * 3600_000L;
+  private final long now = Instant.now().toEpochMilli();
+
+  private long lifecycleDropped;
+  private long labelDropped;
+  private long zeroSeriesDropped;
+
+  private ScanEligibilityFilter(Map<String, Long> zeroSeriesProjects) {
+    this.zeroSeriesProjects = zeroSeriesProjects;
+  }
+
+  /*
+   * API to create a filter with the current negative cache, listed once per listing
+   * */
+  public static ScanEligibilityFilter load() {
+    return new ScanEligibilityFilter(
+        isZeroSeriesCacheEnabled()
+            ? StateStore.listUpdateTimes(ZERO_SERIES_PREFIX)
+            : Collections.emptyMap());
+  }
+
+  private static boolean isZeroSeriesCacheEnabled() {
+    return ZERO_SERIES_CACHE_HOURS > 0 && StateStore.isEnabled();
+  }
+
+  private static List<String> getStates() {
+    List<String> states = EnvironmentConfig.getList("SCAN_LIFECYCLE_STATES");
+    return states.isEmpty() ? List.of("ACTIVE") : states;
+  }
+
+  /*
+   * API to get the Ids of the eligible projects
+   * */
+  public List<String> filter(List<InventoryProject> projects) {
+    List<String> projectIds = new ArrayList<>();
+    for (InventoryProject project : projects) {
+      if (isEligible(project)) {
+        projectIds.add(project.getProjectId());
+      }
+    }
+    return projectIds;
+  }
+
+  /*
+   * API to check a single project, used when projects are published as they are listed
+   * */
+  public boolean isEligible(InventoryProject project) {
+    if (project.getState() != null && !SCAN_LIFECYCLE_STATES.contains(project.getState())) {
+      lifecycleDropped++;
+      return false;
+    }
+    Map<String, String> labels =
+        project.getLabels() == null ? Collections.emptyMap() : project.getLabels();
+    if ((!SCAN_LABEL_INCLUDE.isEmpty() && !matchesAny(labels, SCAN_LABEL_INCLUDE))
+        || matchesAny(labels, SCAN_LABEL_EXCLUDE)) {
+      labelDropped++;
+      return false;
+    }
+    Long zeroSeriesAt = zeroSeriesProjects.get(project.getProjectId());
+    if (zeroSeriesAt != null) {
+      if (now - zeroSeriesAt < cacheMillis) {
+        zeroSeriesDropped++;
+        return false;
+      }
+      expiredProjects.add(project.getProjectId());
+    }
+    return true;
+  }
+
+  /*
+   * API to delete the expired markers of the published projects and log the dropped counts
+   * */
+  public void complete() {
+    for (String projectId : expiredProjects) {
+      StateStore.delete(ZERO_SERIES_PREFIX + projectId);
+    }
+    logger.info(
+        "Skipped " + lifecycleDropped + " projects by lifecycle state, " + labelDropped
+            + " by labels, " + zeroSeriesDropped + " with no time series");
+  }
+
+  static boolean matchesAny(Map<String, String> labels, List<String> rules) {
+    for (String rule : rules) {
+      int separator = rule.indexOf('=');
+      if (separator < 0) {
+        if (labels.containsKey(rule)) {
+          return true;
+        }
+      } else if (rule.substring(separator + 1).equals(labels.get(rule.substring(0, separator)))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * API for the scan function to mark the projects of a complete scan that returned no
+   * time series, so that the next listings skip them
+   * */
+  public static void recordScan(GCPProject gcpProject, List<ProjectQuotaBatch> batches) {
+    if (!isZeroSeriesCacheEnabled()) {
+      return;
+    }
+    Set<String> projectsWithSeries = new HashSet<>();
+    for (ProjectQuotaBatch batch : batches) {
+      if (batch == null || !batch.isComplete()) {
+        return;
+      }
+      for (int row = 0; row < batch.size(); row++) {
+        projectsWithSeries.add(batch.getProjectId(row));
+      }
+    }
+    List<String> projectIds =
+        gcpProject.getProjectIds() != null
+            ? gcpProject.getProjectIds()
+            : List.of(gcpProject.getProjectId());
+    for (String projectId : projectIds) {
+      if (!projectsWithSeries.contains(projectId)) {
+        StateStore.write(
+            ZERO_SERIES_PREFIX + projectId,
+            Map.of("projectId", projectId, "scannedAt", Instant.now().toString()));
+      }
+    }
+  }
+}
@@ -13,22 +13,36 @@ Copyright 2023 Google LLC
 
 package functions;
 
-import static functions.ScanProjectQuotasHelper.createGCPResourceClient;
+import static functions.ScanProjectQuotasHelper.getGCPResourceClient;
 import static functions.ScanProjectQuotasHelper.getQuota;
+import static functions.ScanProjectQuotasHelper.getQuotasAsync;
+import static functions.ScanProjectQuotasHelper.getSink;
 import static functions.ScanProjectQuotasHelper.loadBigQueryTable;
 
+import com.google.api.gax.rpc.ApiException;
 import com.google.cloud.functions.BackgroundFunction;
 import com.google.cloud.functions.Context;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.monitoring.v3.ProjectName;
 import functions.eventpojos.GCPProject;
 import functions.eventpojos.GCPResourceClient;
+import functions.eventpojos.InventoryProject;
 import functions.eventpojos.PubSubMessage;
-import functions.eventpojos.ProjectQuota;
+import functions.eventpojos.ScanContinuation;
+import functions.eventpojos.ScanEnvelope;
+import io.github.resilience4j.ratelimiter.RequestNotPermitted;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,6 +55,19 @@ public class ScanProjectQuotas implements BackgroundFunction<PubSubMessage> {
   public static final String BIG_QUERY_DATASET = System.getenv("BIG_QUERY_DATASET");
   // BigQuery Table name
   public static final String BIG_QUERY_TABLE = System.getenv("BIG_QUERY_TABLE");
+  // Issue all quota queries for a project concurrently instead of one after the other
+  public static final boolean ASYNC_SCAN = EnvironmentConfig.getBoolean("ASYNC_SCAN", false);
+  // Metrics scope host project used to scan batches of projects with one set of queries
+  public static final String METRICS_SCOPE_PROJECT =
+      EnvironmentConfig.getString("METRICS_SCOPE_PROJECT", null);
+  // Projects of a metrics scope scanned with one set of queries
+  private static final int METRICS_SCOPE_BATCH_SIZE = 100;
+  // Scans of a message run at the same time
+  public static final int SCAN_CONCURRENCY = EnvironmentConfig.getInt("SCAN_CONCURRENCY", 4);
+
+  private static final Gson gson = new Gson();
+  private static final ExecutorService scanExecutor =
+      Executors.newFixedThreadPool(Math.max(1, SCAN_CONCURRENCY));
 
   /*
    * API to accept request to Cloud Function
@@ -51,69 +78,306 @@ public class ScanProjectQuotas implements BackgroundFunction<PubSubMessage> {
       logger.log(Level.WARNING, "No Project Id provided");
       return;
     }
-    // project Id received from Pub/Sub topic
-    String projectId =
+    // project Id, comma separated project Ids or a JSON envelope received from Pub/Sub topic
+    String data =
         new String(
             Base64.getDecoder().decode(message.getData().getBytes(StandardCharsets.UTF_8)),
             StandardCharsets.UTF_8);
+    if (!isOwnShard(message)) {
+      logger.info("Skipping message " + message.getMessageId() + " of another shard");
+      return;
+    }
+    try {
+      ScanBudget budget = ScanBudget.start();
+      List<String> projectIds = ShardRing.ownedProjectIds(getProjectIds(data));
+      List<GCPProject> targets = getScanTargets(projectIds);
+      targets.addAll(getContinuationTargets(data));
+      GCPResourceClient gcpResourceClient = getGCPResourceClient();
+      scanProjects(gcpResourceClient, targets, budget);
+      // Rows still buffered by the sink are sent before the invocation returns
+      getSink(gcpResourceClient).flush();
+      if (budget != null) {
+        budget.publish();
+      }
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, " " + e.getMessage(), e);
+    }
+  }
+
+  /*
+   * API to check the shard attribute of a message against the shard of this scanner
+   * */
+  private static boolean isOwnShard(PubSubMessage message) {
+    if (!ShardRing.isSharded() || message.getAttributes() == null) {
+      return true;
+    }
+    String shard = message.getAttributes().get(ShardRing.SHARD_ATTRIBUTE);
+    return shard == null || shard.equals(String.valueOf(ShardRing.SHARD_INDEX));
+  }
+
+  /*
+   * API to get the project Ids of a message, either comma separated Ids or a JSON envelope
+   * */
+  static List<String> getProjectIds(String data) {
+    List<String> projectIds = new ArrayList<>();
+    if (!data.trim().startsWith("{")) {
+      for (String projectId : data.split(",")) {
+        if (!projectId.isBlank()) {
+          projectIds.add(projectId.trim());
+        }
+      }
+      return projectIds;
+    }
+
+    ScanEnvelope envelope = parseEnvelope(data);
+    if (envelope == null) {
+      return projectIds;
+    }
+    if (envelope.getProjectIds() != null) {
+      projectIds.addAll(envelope.getProjectIds());
+    }
+    if (envelope.isShard() && isOwnShard(envelope)) {
+      projectIds.addAll(getShardProjectIds(envelope));
+    }
+    return projectIds;
+  }
+
+  /*
+   * API to parse a JSON envelope, returns null if it is invalid
+   * */
+  private static ScanEnvelope parseEnvelope(String data) {
     try {
+      return gson.fromJson(data, ScanEnvelope.class);
+    } catch (JsonParseException e) {
+      logger.log(Level.SEVERE, "Error parsing scan envelope: " + e.getMessage(), e);
+      return null;
+    }
+  }
+
+  /*
+   * API to get the scans resumed from the continuations of a JSON envelope
+   * */
+  static List<GCPProject> getContinuationTargets(String data) {
+    List<GCPProject> targets = new ArrayList<>();
+    ScanEnvelope envelope = data.trim().startsWith("{") ? parseEnvelope(data) : null;
+    if (envelope == null || envelope.getContinuations() == null) {
+      return targets;
+    }
+    for (ScanContinuation continuation : envelope.getContinuations()) {
+      GCPProject gcpProject = new GCPProject();
+      gcpProject.setProjectId(continuation.getProjectId());
+      gcpProject.setProjectName(ProjectName.of(continuation.getProjectId()).toString());
+      gcpProject.setProjectIds(continuation.getProjectIds());
+      gcpProject.setContinuation(continuation);
+      targets.add(gcpProject);
+    }
+    return targets;
+  }
+
+  /*
+   * API to check a shard descriptor against the shard of this scanner. The projects of
+   * another shard would all be dropped by the shard ring, so the descriptor is rejected.
+   * */
+  private static boolean isOwnShard(ScanEnvelope envelope) {
+    if (!ShardRing.isSharded()
+        || (envelope.getShardCount() == ShardRing.SHARD_COUNT
+            && envelope.getShardIndex() == ShardRing.SHARD_INDEX)) {
+      return true;
+    }
+    logger.warning(
+        "Rejecting descriptor of shard " + envelope.getShardIndex() + "/"
+            + envelope.getShardCount() + ", this scanner owns shard " + ShardRing.SHARD_INDEX
+            + "/" + ShardRing.SHARD_COUNT);
+    return false;
+  }
+
+  /*
+   * API to get the eligible projects of the persisted inventory that fall in the shard
+   * */
+  private static List<String> getShardProjectIds(ScanEnvelope envelope) {
+    List<InventoryProject> shardProjects = new ArrayList<>();
+    for (InventoryProject project : ProjectInventory.readProjects(envelope.getParents())) {
+      if (ShardRing.shardOf(project.getProjectId(), envelope.getShardCount())
+          == envelope.getShardIndex()) {
+        shardProjects.add(project);
+      }
+    }
+    ScanEligibilityFilter filter = ScanEligibilityFilter.load();
+    List<String> projectIds = filter.filter(shardProjects);
+    filter.complete();
+    logger.info(
+        "Shard " + envelope.getShardIndex() + "/" + envelope.getShardCount() + " of "
+            + envelope.getParents() + ": " + projectIds.size() + " projects");
+    return projectIds;
+  }
+
+  /*
+   * API to get the scans of a list of projects. With a metrics scope host project, one set of
+   * queries covers up to METRICS_SCOPE_BATCH_SIZE projects.
+   * */
+  static List<GCPProject> getScanTargets(List<String> projectIds) {
+    List<GCPProject> targets = new ArrayList<>();
+    if (projectIds.size() > 1 && METRICS_SCOPE_PROJECT != null) {
+      for (int i = 0; i < projectIds.size(); i += METRICS_SCOPE_BATCH_SIZE) {
+        targets.add(
+            createProjectBatch(
+                projectIds.subList(i, Math.min(i + METRICS_SCOPE_BATCH_SIZE, projectIds.size()))));
+      }
+      return targets;
+    }
+    for (String projectId : projectIds) {
       GCPProject gcpProject = new GCPProject();
       gcpProject.setProjectId(projectId);
       gcpProject.setProjectName(ProjectName.of(projectId).toString());
-      GCPResourceClient gcpResourceClient = createGCPResourceClient();
+      targets.add(gcpProject);
+    }
+    return targets;
+  }
 
-      // 1. Scan Allocation quota and load in main table in BigQuery
-      getAllocationUsageQuotas(gcpResourceClient, gcpProject);
-      // 2. Scan Rate quotas and load in main table
-      getRateUsageQuotas(gcpResourceClient, gcpProject);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, " " + e.getMessage(), e);
+  /*
+   * API to run the scans of a message, at most SCAN_CONCURRENCY at a time across the
+   * instance. All scans share the clients of the instance. Scans that have not started when
+   * the budget is spent are handed over to the continuation.
+   * */
+  private static void scanProjects(
+      GCPResourceClient gcpResourceClient, List<GCPProject> targets, ScanBudget budget)
+      throws InterruptedException {
+    List<Future<?>> scans = new ArrayList<>();
+    for (GCPProject gcpProject : targets) {
+      scans.add(
+          scanExecutor.submit(
+              () -> {
+                if (budget != null && budget.isExpired()) {
+                  budget.defer(gcpProject);
+                  return null;
+                }
+                scanProject(gcpResourceClient, gcpProject, budget);
+                return null;
+              }));
+    }
+    for (int i = 0; i < scans.size(); i++) {
+      try {
+        scans.get(i).get();
+      } catch (ExecutionException e) {
+        logger.log(
+            Level.SEVERE,
+            "Error scanning project " + targets.get(i).getProjectId() + ": "
+                + e.getCause().getMessage(),
+            e.getCause());
+      }
+    }
+  }
+
+  /*
+   * API to create a GCPProject that scans a batch of projects from the metrics scope host project
+   * */
+  static GCPProject createProjectBatch(List<String> projectIds) {
+    GCPProject gcpProject = new GCPProject();
+    gcpProject.setProjectId(METRICS_SCOPE_PROJECT);
+    gcpProject.setProjectName(ProjectName.of(METRICS_SCOPE_PROJECT).toString());
+    gcpProject.setProjectIds(new ArrayList<>(projectIds));
+    return gcpProject;
+  }
+
+  /*
+   * API to scan Allocation and Rate quotas for a project, or a batch of projects, and load
+   * them in BigQuery
+   * */
+  static void scanProject(GCPResourceClient gcpResourceClient, GCPProject gcpProject)
+      throws IOException, InterruptedException {
+    scanProject(gcpResourceClient, gcpProject, null);
+  }
+
+  /*
+   * API to scan a project, or a batch of projects, within the budget of an invocation. A scan
+   * resumed from a continuation only runs the queries left.
+   * */
+  static void scanProject(
+      GCPResourceClient gcpResourceClient, GCPProject gcpProject, ScanBudget budget)
+      throws IOException, InterruptedException {
+    if (ASYNC_SCAN) {
+      ScanEligibilityFilter.recordScan(
+          gcpProject, List.of(scanQuotasAsync(gcpResourceClient, gcpProject, budget)));
+      return;
     }
+
+    // 1. Scan Allocation quota and load in main table in BigQuery
+    ProjectQuotaBatch allocation =
+        ScanBudget.isPending(gcpProject, ScanProjectQuotasHelper.Quotas.ALLOCATION)
+            ? getAllocationUsageQuotas(gcpResourceClient, gcpProject, budget)
+            : null;
+    // 2. Scan Rate quotas and load in main table
+    ProjectQuotaBatch rate =
+        ScanBudget.isPending(gcpProject, ScanProjectQuotasHelper.Quotas.RATE)
+            ? getRateUsageQuotas(gcpResourceClient, gcpProject, budget)
+            : null;
+    ScanEligibilityFilter.recordScan(gcpProject, Arrays.asList(allocation, rate));
   }
 
   /*
-   * API to get all Allocation quotas usage for this project
+   * API to get all Allocation quotas usage for this project, returns null if they could not
+   * be loaded
    * */
-  private static void getAllocationUsageQuotas(
-      GCPResourceClient gcpResourceClient, GCPProject gcpProject) {
+  private static ProjectQuotaBatch getAllocationUsageQuotas(
+      GCPResourceClient gcpResourceClient, GCPProject gcpProject, ScanBudget budget) {
     try {
-      scanQuota(
+      return scanQuota(
         gcpResourceClient,
         gcpProject,
-        ScanProjectQuotasHelper.Quotas.ALLOCATION
+        ScanProjectQuotasHelper.Quotas.ALLOCATION,
+        budget
       );
-    } catch (IOException e) {
+    } catch (IOException | ApiException | RequestNotPermitted e) {
       logger.log(Level.SEVERE, "Error fetching Allocation usage quotas " + e.getMessage(), e);
+      return null;
     }
   }
 
   /*
-   * API to get all Rate quotas usage for this project
+   * API to get all Rate quotas usage for this project, returns null if they could not be
+   * loaded
    * */
-  private static void getRateUsageQuotas(
-      GCPResourceClient gcpResourceClient, GCPProject gcpProject) {
+  private static ProjectQuotaBatch getRateUsageQuotas(
+      GCPResourceClient gcpResourceClient, GCPProject gcpProject, ScanBudget budget) {
     try {
-      scanQuota(
+      return scanQuota(
         gcpResourceClient,
         gcpProject,
-        ScanProjectQuotasHelper.Quotas.RATE
+        ScanProjectQuotasHelper.Quotas.RATE,
+        budget
       );
-    } catch (IOException e) {
+    } catch (IOException | ApiException | RequestNotPermitted e) {
       logger.log(Level.SEVERE, "Error fetching Rate usage quotas  " + e.getMessage(), e);
+      return null;
     }
   }
 
+  /*
+   * API to get Allocation and Rate quotas with concurrent queries and load them in BigQuery
+   * */
+  private static ProjectQuotaBatch scanQuotasAsync(
+      GCPResourceClient gcpResourceClient, GCPProject gcpProject, ScanBudget budget)
+      throws IOException, InterruptedException {
+    ProjectQuotaBatch batch = getQuotasAsync(gcpProject, budget);
+    loadBigQueryTable(gcpResourceClient, gcpProject, "ALL", batch);
+    logger.log(
+        Level.INFO, "Quotas loaded successfully for project Id:" + gcpProject.getProjectId());
+    return batch;
+  }
+
   /*
    * API to get quotas from APIs and load in BigQuery
    * */
-  private static void scanQuota(
+  private static ProjectQuotaBatch scanQuota(
       GCPResourceClient gcpResourceClient,
       GCPProject gcpProject,
-      ScanProjectQuotasHelper.Quotas q)
+      ScanProjectQuotasHelper.Quotas q,
+      ScanBudget budget)
       throws IOException {
-    List<ProjectQuota> projectQuotas = getQuota(gcpProject, q);
-    loadBigQueryTable(gcpResourceClient, projectQuotas);
+    ProjectQuotaBatch batch = getQuota(gcpProject, q, budget);
+    loadBigQueryTable(gcpResourceClient, gcpProject, q.toString(), batch);
     logger.log(
         Level.INFO, "Quotas loaded successfully for project Id:" + gcpProject.getProjectId());
+    return batch;
   }
 }
@@ -13,8 +13,12 @@ Copyright 2023 Google LLC
 
 package functions;
 
+import static functions.QueryServiceClientHolder.getQueryServiceClient;
 import static functions.ScanProjectQuotas.THRESHOLD;
 
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiException;
 import com.google.cloud.Timestamp;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryError;
@@ -23,16 +27,20 @@ import com.google.cloud.bigquery.BigQueryOptions;
 import com.google.cloud.bigquery.InsertAllRequest;
 import com.google.cloud.bigquery.InsertAllResponse;
 import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.TableName;
+import com.google.cloud.monitoring.v3.QueryServiceClient.QueryTimeSeriesPage;
 import com.google.cloud.monitoring.v3.QueryServiceClient.QueryTimeSeriesPagedResponse;
 import com.google.cloud.monitoring.v3.QueryServiceClient;
 import com.google.monitoring.v3.QueryTimeSeriesRequest;
 import com.google.monitoring.v3.TimeSeriesData;
-import com.google.monitoring.v3.TimeSeriesDescriptor;
 import com.google.monitoring.v3.TimeSeriesData.PointData;
 
 import functions.eventpojos.GCPProject;
 import functions.eventpojos.GCPResourceClient;
 import functions.eventpojos.ProjectQuota;
+import functions.eventpojos.ScanContinuation;
+import io.github.resilience4j.ratelimiter.RequestNotPermitted;
 import java.io.IOException;
 import java.time.LocalDate;
 import java.time.LocalTime;
@@ -40,15 +48,38 @@ import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ScanProjectQuotasHelper {
   private static final Logger logger = Logger.getLogger(ScanProjectQuotasHelper.class.getName());
 
+  // Sink for scan results: insert_all (streaming inserts, default) or storage_write
+  public static final String BIG_QUERY_SINK = EnvironmentConfig.getString("BIG_QUERY_SINK", "insert_all");
+  // Storage Write API stream: default or committed
+  public static final String STORAGE_WRITE_STREAM =
+      EnvironmentConfig.getString("STORAGE_WRITE_STREAM", "default");
+
+  private static final String SINK_STORAGE_WRITE = "storage_write";
+  private static final String STREAM_COMMITTED = "committed";
+  // Use the reduced resolution queries that return one point per series
+  public static final boolean REDUCED_RESOLUTION =
+      EnvironmentConfig.getBoolean("REDUCED_RESOLUTION_QUERIES", false);
+  // Keep rolling window state in SCAN_STATE_BUCKET and only query data since the last scan
+  public static final boolean INCREMENTAL_SCAN =
+      EnvironmentConfig.getBoolean("INCREMENTAL_SCAN", false) && StateStore.isEnabled();
+
+  private static ProjectQuotaSink storageWriteApiSink;
+  // Sink set by tests and load tests, BigQuery is not used when it is set
+  private static ProjectQuotaSink overrideSink;
+  // BigQuery client and sink shared by all scans on this instance
+  private static GCPResourceClient sharedResourceClient;
+
   public static final String MQL_ALLOCATION_ALL = "fetch consumer_quota" +
   "| { current: metric serviceruntime.googleapis.com/quota/allocation/usage" +  
   "    | filter resource.project_id = '%1$s'" +
@@ -141,15 +172,229 @@ public class ScanProjectQuotasHelper {
   "| join" +
   "| value [daily: val(0), limit: val(1)]";
 
+  // Labels read from query responses, everything else is projected away by the reduced queries
+  private static final String ALLOCATION_LABELS =
+      "[resource.project_id, resource.location, metric.quota_metric, metric.limit_name]";
+  private static final String RATE_LABELS =
+      "[resource.project_id, resource.location, metric.quota_metric, metric.limit_name,"
+          + " metric.method]";
+
+  // Lookback of the reduced rate queries, only their newest point is read. Quota usage is
+  // sampled every minute and visible up to 150 seconds later, so a window of one alignment
+  // period would often hold no point at all.
+  private static final String REDUCED_LOOKBACK = "5m";
+
+  // Reduced resolution variant of MQL_ALLOCATION_ALL that only returns the labels in use
+  public static final String MQL_ALLOCATION_ALL_REDUCED = MQL_ALLOCATION_ALL +
+  "| map " + ALLOCATION_LABELS;
+
+  // Reduced resolution variant of MQL_RATE_QPM. The weekly maximum is still computed by
+  // Cloud Monitoring over a 1w window, but only the minutes of REDUCED_LOOKBACK are returned.
+  public static final String MQL_RATE_QPM_REDUCED = "fetch consumer_quota" +
+  "| { current: metric serviceruntime.googleapis.com/quota/rate/net_usage" +
+  "    | filter resource.project_id = '%1$s'" +
+  "    | every 1m" +
+  "    | within " + REDUCED_LOOKBACK +
+  "  ; maximum: metric serviceruntime.googleapis.com/quota/rate/net_usage" +
+  "    | filter resource.project_id = '%1$s'" +
+  "    | group_by 1w, [value_usage_max: max(value.net_usage)]" +
+  "    | every 1m" +
+  "    | within " + REDUCED_LOOKBACK +
+  "  ; limit: metric 'serviceruntime.googleapis.com/quota/limit'" +
+  "    | filter resource.project_id = '%1$s'" +
+  "      && !(metric.limit_name =~ '.*GoogleEgressBandwidth.*'" +
+  "        || metric.limit_name =~ '.*EGRESS-BANDWIDTH.*'" +
+  "        || metric.limit_name =~ '.*PerDay.*'" +
+  "        || metric.limit_name =~ '.*Qpd.*')" +
+  "    | align next_older(1m)" +
+  "    | every 1m" +
+  "    | within " + REDUCED_LOOKBACK +
+  "    }" +
+  "| join" +
+  "| value [current: val(0), maximum: val(1), limit: val(2)]" +
+  "| map " + RATE_LABELS;
+
+  // Reduced resolution variant of MQL_RATE_QPS, the daily maximum is computed by Cloud
+  // Monitoring and only the seconds of REDUCED_LOOKBACK are returned
+  public static final String MQL_RATE_QPS_REDUCED = "fetch consumer_quota" +
+  "| { current:" +
+  "      metric serviceruntime.googleapis.com/quota/rate/net_usage" +
+  "      | filter" +
+  "          resource.project_id = '%1$s'" +
+  "      | every 1s" +
+  "      | within " + REDUCED_LOOKBACK +
+  "  ; maximum:" +
+  "      metric serviceruntime.googleapis.com/quota/rate/net_usage" +
+  "      | filter" +
+  "          resource.project_id = '%1$s'" +
+  "      | group_by 1d, [value_usage_max: max(value.net_usage)]" +
+  "      | every 1s" +
+  "      | within " + REDUCED_LOOKBACK +
+  "  ; limit:" +
+  "      metric serviceruntime.googleapis.com/quota/limit" +
+  "      | filter" +
+  "          resource.project_id = '%1$s'" +
+  "          && (metric.limit_name =~ '.*GoogleEgressBandwidth.*'" +
+  "              || metric.limit_name =~ '.*EGRESS-BANDWIDTH.*')" +
+  "      | align next_older(1m)" +
+  "      | every 1s" +
+  "      | within " + REDUCED_LOOKBACK +
+  " }" +
+  "| join" +
+  "| value [current: val(0), maximum: val(1), limit: val(2)]" +
+  "| map " + RATE_LABELS;
+
+  // Reduced resolution variant of MQL_RATE_QPD. The seven daily sums are needed for the
+  // maximum, so only the unused labels are projected away.
+  public static final String MQL_RATE_QPD_REDUCED = MQL_RATE_QPD +
+  "| map " + RATE_LABELS;
+
+  // Incremental variants used with a rolling window checkpoint. The maximum only covers the
+  // time since the checkpoint (%2$s) and is merged with the persisted window, QPD only
+  // fetches the daily sums since the checkpoint day (%3$s).
+  public static final String MQL_ALLOCATION_INCREMENTAL =
+      MQL_ALLOCATION_ALL_REDUCED.replace("group_by 1w,", "group_by %2$s,");
+  public static final String MQL_RATE_QPM_INCREMENTAL =
+      MQL_RATE_QPM_REDUCED.replace("group_by 1w,", "group_by %2$s,");
+  public static final String MQL_RATE_QPS_INCREMENTAL =
+      MQL_RATE_QPS_REDUCED.replace("group_by 1d,", "group_by %2$s,");
+  public static final String MQL_RATE_QPD_INCREMENTAL =
+      MQL_RATE_QPD_REDUCED.replace("within 1w, d'%2$s'", "within %3$s, d'%2$s'");
+
+  // Labels of the usage series, which do not have a limit name
+  private static final String ALLOCATION_USAGE_LABELS =
+      "[resource.project_id, resource.location, metric.quota_metric]";
+  private static final String RATE_USAGE_LABELS =
+      "[resource.project_id, resource.location, metric.quota_metric, metric.method]";
+
+  // Usage only variants used with the QuotaLimitCache, the limits of each series are joined
+  // from the cache. Usage is only read from the newest point, so they are always reduced.
+  public static final String MQL_ALLOCATION_USAGE = "fetch consumer_quota" +
+  "| { current: metric serviceruntime.googleapis.com/quota/allocation/usage" +
+  "    | filter resource.project_id = '%1$s'" +
+  "    | align next_older(1w)" +
+  "    | every 1w" +
+  "  ; maximum: metric serviceruntime.googleapis.com/quota/allocation/usage" +
+  "    | filter resource.project_id = '%1$s'" +
+  "    | group_by 1w, [value_usage_max: max(value.usage)]" +
+  "    | every 1w" +
+  "    }" +
+  "| join" +
+  "| value [current: val(0), maximum: val(1)]" +
+  "| map " + ALLOCATION_USAGE_LABELS;
+
+  public static final String MQL_RATE_QPM_USAGE = "fetch consumer_quota" +
+  "| { current: metric serviceruntime.googleapis.com/quota/rate/net_usage" +
+  "    | filter resource.project_id = '%1$s'" +
+  "    | every 1m" +
+  "    | within " + REDUCED_LOOKBACK +
+  "  ; maximum: metric serviceruntime.googleapis.com/quota/rate/net_usage" +
+  "    | filter resource.project_id = '%1$s'" +
+  "    | group_by 1w, [value_usage_max: max(value.net_usage)]" +
+  "    | every 1m" +
+  "    | within " + REDUCED_LOOKBACK +
+  "    }" +
+  "| join" +
+  "| value [current: val(0), maximum: val(1)]" +
+  "| map " + RATE_USAGE_LABELS;
+
+  public static final String MQL_RATE_QPS_USAGE = "fetch consumer_quota" +
+  "| { current:" +
+  "      metric serviceruntime.googleapis.com/quota/rate/net_usage" +
+  "      | filter" +
+  "          resource.project_id = '%1$s'" +
+  "      | every 1s" +
+  "      | within " + REDUCED_LOOKBACK +
+  "  ; maximum:" +
+  "      metric serviceruntime.googleapis.com/quota/rate/net_usage" +
+  "      | filter" +
+  "          resource.project_id = '%1$s'" +
+  "      | group_by 1d, [value_usage_max: max(value.net_usage)]" +
+  "      | every 1s" +
+  "      | within " + REDUCED_LOOKBACK +
+  " }" +
+  "| join" +
+  "| value [current: val(0), maximum: val(1)]" +
+  "| map " + RATE_USAGE_LABELS;
+
+  public static final String MQL_RATE_QPD_USAGE = "fetch consumer_quota" +
+  "| metric serviceruntime.googleapis.com/quota/rate/net_usage" +
+  "| filter resource.project_id = '%1$s'" +
+  "| group_by 1d, [value_usage_sum: sum(value.net_usage)]" +
+  "| every 1d" +
+  "| within 1w, d'%2$s'" +
+  "| value [daily: val()]" +
+  "| map " + RATE_USAGE_LABELS;
+
+  public static final String MQL_ALLOCATION_USAGE_INCREMENTAL =
+      MQL_ALLOCATION_USAGE.replace("group_by 1w,", "group_by %2$s,");
+  public static final String MQL_RATE_QPM_USAGE_INCREMENTAL =
+      MQL_RATE_QPM_USAGE.replace("group_by 1w,", "group_by %2$s,");
+  public static final String MQL_RATE_QPS_USAGE_INCREMENTAL =
+      MQL_RATE_QPS_USAGE.replace("group_by 1d,", "group_by %2$s,");
+  public static final String MQL_RATE_QPD_USAGE_INCREMENTAL =
+      MQL_RATE_QPD_USAGE.replace("within 1w, d'%2$s'", "within %3$s, d'%2$s'");
+
+  // MQL to fetch the newest limit of every quota of a project for the QuotaLimitCache
+  public static final String MQL_LIMIT = "fetch consumer_quota" +
+  "| metric serviceruntime.googleapis.com/quota/limit" +
+  "| filter resource.project_id = '%1$s'" +
+  "| align next_older(1d)" +
+  "| every 1d" +
+  "| within 1d" +
+  "| value [limit: val()]" +
+  "| map " + ALLOCATION_LABELS;
+
+  // Project filter used by every MQL template, and its replacement for batched scans
+  static final String PROJECT_FILTER = "resource.project_id = '%1$s'";
+  static final String PROJECT_BATCH_FILTER = "resource.project_id =~ '%1$s'";
+
   enum Quotas {
     ALLOCATION,
     RATE
   }
 
+  /*
+   * MQL queries run for a project scan and the quota type their rows are loaded as
+   * */
+  enum QueryType {
+    ALLOCATION(Quotas.ALLOCATION),
+    QPM(Quotas.RATE),
+    QPD(Quotas.RATE),
+    QPS(Quotas.RATE);
+
+    private final Quotas quota;
+
+    QueryType(Quotas quota) {
+      this.quota = quota;
+    }
+
+    Quotas getQuota() {
+      return quota;
+    }
+  }
+
+  /*
+   * API to get the GCP Resource Client for BigQuery Tables shared by all scans on this
+   * instance, creating it if needed
+   * */
+  static synchronized GCPResourceClient getGCPResourceClient() {
+    ProjectQuotaSink sink = getOverrideSink();
+    if (sink != null) {
+      GCPResourceClient gcpResourceClient = new GCPResourceClient();
+      gcpResourceClient.setSink(sink);
+      return gcpResourceClient;
+    }
+    if (sharedResourceClient == null) {
+      sharedResourceClient = createGCPResourceClient();
+    }
+    return sharedResourceClient;
+  }
+
   /*
    * API to create GCP Resource Client for BigQuery Tables
    * */
-  static GCPResourceClient createGCPResourceClient() {
+  private static GCPResourceClient createGCPResourceClient() {
     String datasetName = ScanProjectQuotas.BIG_QUERY_DATASET;
     String tableName = ScanProjectQuotas.BIG_QUERY_TABLE;
     // Initialize client that will be used to send requests.
@@ -159,190 +404,588 @@ public class ScanProjectQuotasHelper {
     GCPResourceClient gcpResourceClient = new GCPResourceClient();
     gcpResourceClient.setBigQuery(bigquery);
     gcpResourceClient.setTableId(tableId);
+    gcpResourceClient.setSink(createSink(bigquery, tableId));
     return gcpResourceClient;
   }
 
-  public static List<ProjectQuota> getQuota(GCPProject gcpProject, Quotas quota) {
-    List<ProjectQuota> projectQuotas = new ArrayList<>();
+  /*
+   * API to get the sink of a client, a client without one gets a streaming insert sink kept
+   * for its later scans
+   * */
+  static synchronized ProjectQuotaSink getSink(GCPResourceClient gcpResourceClient) {
+    if (gcpResourceClient.getSink() == null) {
+      gcpResourceClient.setSink(
+          new InsertAllSink(gcpResourceClient.getBigQuery(), gcpResourceClient.getTableId()));
+    }
+    return gcpResourceClient.getSink();
+  }
 
-    try (QueryServiceClient queryServiceClient = QueryServiceClient.create()) {
-      QueryTimeSeriesRequest request =
-          QueryTimeSeriesRequest.newBuilder()
-              .setName(gcpProject.getProjectName())
-              .setQuery(String.format(getMql(quota), gcpProject.getProjectId()))
-              .build();
-
-      Timestamp ts = Timestamp.now();
-      QueryTimeSeriesPagedResponse response = queryServiceClient.queryTimeSeries(request);
-      HashMap<String, Integer> indexMap = buildIndexMap(response.getPage().getResponse().getTimeSeriesDescriptor());
-      for (TimeSeriesData data : response.iterateAll()) {
-          projectQuotas.add(populateProjectQuota(data, null, ts, indexMap, quota));
-      }
+  /*
+   * API to make every scan write its rows to the given sink instead of BigQuery. Passing
+   * null restores the BigQuery sinks.
+   * */
+  public static synchronized void setSink(ProjectQuotaSink sink) {
+    overrideSink = sink;
+  }
 
-      // Get the QPD and QPS quotas
-      if(quota == Quotas.RATE) {
-        projectQuotas.addAll(getPerDayQuota(gcpProject, ts));
-        
-        projectQuotas.addAll(getPerSecondQuota(gcpProject, ts));
+  private static synchronized ProjectQuotaSink getOverrideSink() {
+    return overrideSink;
+  }
+
+  /*
+   * API to create the sink selected by BIG_QUERY_SINK. The Storage Write API sink is kept
+   * for the lifetime of the instance, streaming inserts are the fallback.
+   * */
+  private static synchronized ProjectQuotaSink createSink(BigQuery bigquery, TableId tableId) {
+    if (!SINK_STORAGE_WRITE.equalsIgnoreCase(BIG_QUERY_SINK)) {
+      return new InsertAllSink(bigquery, tableId);
+    }
+    if (storageWriteApiSink == null) {
+      try {
+        String projectId =
+            tableId.getProject() != null ? tableId.getProject() : bigquery.getOptions().getProjectId();
+        BigQueryWriteClient writeClient = BigQueryWriteClient.create();
+        storageWriteApiSink =
+            new StorageWriteApiSink(
+                writeClient,
+                TableName.of(projectId, tableId.getDataset(), tableId.getTable()),
+                STREAM_COMMITTED.equalsIgnoreCase(STORAGE_WRITE_STREAM));
+      } catch (IOException e) {
+        logger.log(
+            Level.SEVERE,
+            "Error creating Storage Write API client, using streaming inserts: " + e.getMessage(),
+            e);
+        return new InsertAllSink(bigquery, tableId);
       }
+    }
+    return storageWriteApiSink;
+  }
 
-    } catch (IOException e) {
-      logger.log(
-          Level.SEVERE,
-          "Error fetching timeseries data for project: "
-              + gcpProject.getProjectName()
-              + e.getMessage(),
-          e);
+  /*
+   * API to scan the quotas of a project into a columnar batch. With a budget, the queries
+   * left when it is spent are handed over as a continuation.
+   * */
+  public static ProjectQuotaBatch getQuota(GCPProject gcpProject, Quotas quota, ScanBudget budget) {
+    ProjectQuotaBatch batch = createBatch(Timestamp.now());
+    if (gcpProject.getContinuation() != null) {
+      // The batch only holds the rest of a scan
+      batch.markIncomplete();
     }
 
-    return projectQuotas;
-  }
+    ScanTelemetry.Operation scan = ScanTelemetry.startScan(gcpProject, quota.toString());
+    try {
+      RollingWindowTracker tracker = INCREMENTAL_SCAN ? RollingWindowTracker.load(gcpProject) : null;
+      QuotaLimitCache limits =
+          QuotaLimitCache.isEnabled() ? QuotaLimitCache.load(gcpProject) : null;
 
-  private static List<ProjectQuota> getPerSecondQuota(GCPProject gcpProject, Timestamp ts) {
-    HashMap<String, ProjectQuota> projectQuotas = new HashMap<>();
+      // ALLOCATION, or the QPM, QPD and QPS quotas
+      ScanContinuation deferred = null;
+      for (QueryType queryType : QueryType.values()) {
+        if (queryType.getQuota() != quota || !ScanBudget.isPending(gcpProject, queryType)) {
+          continue;
+        }
+        if (budget != null && budget.isExpired()) {
+          deferred = defer(deferred, gcpProject, queryType, null);
+          continue;
+        }
+        QueryTimeSeriesRequest rest =
+            getQuota(gcpProject, queryType, batch, tracker, limits, budget);
+        if (rest != null) {
+          deferred = defer(deferred, gcpProject, queryType, rest);
+        }
+      }
+      if (deferred != null) {
+        batch.markIncomplete();
+        budget.defer(deferred);
+      }
 
-    try (QueryServiceClient queryServiceClient = QueryServiceClient.create()) {
-      String mql =
-          String.format(MQL_RATE_QPS,
-              gcpProject.getProjectId()
-          );
+      if (tracker != null) {
+        // Checkpoints only advance once the sink wrote the rows of the window they cover
+        batch.whenWritten(tracker::save);
+      }
+      if (limits != null) {
+        limits.save();
+      }
+    } finally {
+      scan.close();
+    }
+    return batch;
+  }
 
+  /*
+   * API to run one query of a scan. Returns the request for the rest of its pages if the
+   * budget was spent before the last page, null otherwise.
+   * */
+  private static QueryTimeSeriesRequest getQuota(
+      GCPProject gcpProject,
+      QueryType queryType,
+      ProjectQuotaBatch batch,
+      RollingWindowTracker tracker,
+      QuotaLimitCache limits,
+      ScanBudget budget) {
+    ScanTelemetry.Operation query = ScanTelemetry.startQuery(gcpProject, queryType);
+    try {
+      QueryServiceClient queryServiceClient = getQueryServiceClient();
+      LocalDate today = LocalDate.now();
       QueryTimeSeriesRequest request =
-          QueryTimeSeriesRequest.newBuilder()
-              .setName(gcpProject.getProjectName())
-              .setQuery(mql)
-              .build();
-
-      QueryTimeSeriesPagedResponse response = queryServiceClient.queryTimeSeries(request);
-      HashMap<String, Integer> indexMap = buildIndexMap(response.getPage().getResponse().getTimeSeriesDescriptor());
-      for (TimeSeriesData data : response.iterateAll()) {
-        String key = data.getLabelValues(indexMap.get("metric.limit_name")).getStringValue() + data.getLabelValues(indexMap.get("resource.location")).getStringValue();
-        projectQuotas.put(key, populateProjectQuota(data, null, ts, indexMap, Quotas.RATE));   
-      }
-    } catch (IOException e) {
+          buildQueryRequest(gcpProject, queryType, today, tracker, limits);
+      QueryTimeSeriesPagedResponse response =
+          AdaptiveRateLimiter.MONITORING.call(
+              () -> QueryHedger.query(queryServiceClient, queryType, request));
+      String nextPageToken =
+          processResponse(
+              queryServiceClient, request, response, queryType, batch, today, tracker, limits,
+              budget, query);
+      return nextPageToken == null ? null : request.toBuilder().setPageToken(nextPageToken).build();
+    } catch (IOException | ApiException | RequestNotPermitted e) {
+      // The other queries of the scan still run, the batch is only partial
+      batch.markIncomplete();
+      query.recordError(e);
       logger.log(
           Level.SEVERE,
           "Error fetching timeseries data for project: "
               + gcpProject.getProjectName()
               + e.getMessage(),
           e);
+    } finally {
+      query.close();
     }
-
-    return new ArrayList<ProjectQuota>(projectQuotas.values());
+    return null;
   }
 
-  private static List<ProjectQuota> getPerDayQuota(GCPProject gcpProject, Timestamp ts) {
-    List<ProjectQuota> projectQuotas = new ArrayList<>();
-    HashMap<String, Long> values = new HashMap<>() {{
-      put("current", (long) 0);
-      put("max", (long) 0);
-    }};
+  /*
+   * API to issue the ALLOCATION, QPM, QPD and QPS queries for a project at once and merge
+   * the results. The first page of every query is requested concurrently, so the scan takes
+   * about as long as the slowest query. With a budget, the pages left when it is spent are
+   * handed over as a continuation.
+   * */
+  public static ProjectQuotaBatch getQuotasAsync(GCPProject gcpProject, ScanBudget budget)
+      throws IOException, InterruptedException {
+    QueryServiceClient queryServiceClient = getQueryServiceClient();
+    ProjectQuotaBatch batch = createBatch(Timestamp.now());
+    LocalDate today = LocalDate.now();
+    if (gcpProject.getContinuation() != null) {
+      // The batch only holds the rest of a scan
+      batch.markIncomplete();
+    }
 
-    try (QueryServiceClient queryServiceClient = QueryServiceClient.create()) {
-      // This needs to align to the day boundaries as closely as possible to that we get an
-      // accurate view into same window as the quota system.
-      LocalDate today = LocalDate.now();
-      ZonedDateTime endOfDay = ZonedDateTime.of(today, LocalTime.MAX, ZoneId.of("America/Los_Angeles"));
-      
-      String mql =
-          String.format(MQL_RATE_QPD,
-              gcpProject.getProjectId(),
-              endOfDay.format(DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss"))
-          );
+    ScanTelemetry.Operation scan = ScanTelemetry.startScan(gcpProject, "ALL");
+    try {
+      RollingWindowTracker tracker = INCREMENTAL_SCAN ? RollingWindowTracker.load(gcpProject) : null;
+      QuotaLimitCache limits =
+          QuotaLimitCache.isEnabled() ? QuotaLimitCache.load(gcpProject) : null;
 
-      QueryTimeSeriesRequest request =
-          QueryTimeSeriesRequest.newBuilder()
-              .setName(gcpProject.getProjectName())
-              .setQuery(mql)
-              .build();
-
-      QueryTimeSeriesPagedResponse response = queryServiceClient.queryTimeSeries(request);
-      HashMap<String, Integer> indexMap = buildIndexMap(response.getPage().getResponse().getTimeSeriesDescriptor());
-      for (TimeSeriesData data : response.iterateAll()) {
-        List<PointData> stuffs = data.getPointDataList();
-
-        for (PointData pointData : stuffs) {
-         logger.info(String.format("Metric: %s, Current: %d, Max %d, Value %d%n", 
-            data.getLabelValues(indexMap.get("metric.quota_metric")).getStringValue(),
-            values.get("current"), values.get("max"),
-            pointData.getValues(0).getInt64Value()));
-
-          // Cloud Monitoring returns UTC timestamps so we need to use end of day UTC to match correctly.
-          if (pointData.getTimeInterval().getEndTime().getSeconds() == ZonedDateTime.of(today, LocalTime.MAX, ZoneId.of("UTC")).toEpochSecond()) {
-            values.replace("current", pointData.getValues(0).getInt64Value());
-          }
+      Map<QueryType, QueryTimeSeriesRequest> requests = new EnumMap<>(QueryType.class);
+      Map<QueryType, ApiFuture<QueryTimeSeriesPagedResponse>> responses =
+          new EnumMap<>(QueryType.class);
+      Map<QueryType, ScanTelemetry.Operation> queries = new EnumMap<>(QueryType.class);
+      for (QueryType queryType : QueryType.values()) {
+        if (!ScanBudget.isPending(gcpProject, queryType)) {
+          continue;
+        }
+        QueryTimeSeriesRequest request =
+            buildQueryRequest(gcpProject, queryType, today, tracker, limits);
+        queries.put(queryType, ScanTelemetry.startQuery(gcpProject, queryType));
+        requests.put(queryType, request);
+        try {
+          AdaptiveRateLimiter.MONITORING.acquire();
+          responses.put(queryType, QueryHedger.futureCall(queryServiceClient, queryType, request));
+        } catch (RequestNotPermitted e) {
+          // Reported with the outcome of the other queries
+          responses.put(queryType, ApiFutures.immediateFailedFuture(e));
+        }
+      }
 
-          if (pointData.getValues(0).getInt64Value() > values.get("max")) {
-            values.replace("max", pointData.getValues(0).getInt64Value());
+      ScanContinuation deferred = null;
+      for (Map.Entry<QueryType, ApiFuture<QueryTimeSeriesPagedResponse>> entry :
+          responses.entrySet()) {
+        ScanTelemetry.Operation query = queries.get(entry.getKey());
+        try {
+          QueryTimeSeriesRequest request = requests.get(entry.getKey());
+          QueryTimeSeriesPagedResponse response =
+              getResponse(entry.getValue(), queryServiceClient, request);
+          String nextPageToken = processResponse(
+              queryServiceClient, request, response, entry.getKey(), batch, today, tracker,
+              limits, budget, query);
+          if (nextPageToken != null) {
+            deferred = defer(deferred, gcpProject, entry.getKey(),
+                request.toBuilder().setPageToken(nextPageToken).build());
           }
+        } catch (ExecutionException e) {
+          batch.markIncomplete();
+          query.recordError(e.getCause());
+          logger.log(
+              Level.SEVERE,
+              "Error fetching " + entry.getKey() + " timeseries data for project: "
+                  + gcpProject.getProjectName()
+                  + e.getCause().getMessage(),
+              e.getCause());
+        } catch (ApiException | RequestNotPermitted e) {
+          batch.markIncomplete();
+          query.recordError(e);
+          logger.log(
+              Level.SEVERE,
+              "Error fetching " + entry.getKey() + " timeseries data for project: "
+                  + gcpProject.getProjectName()
+                  + e.getMessage(),
+              e);
+        } finally {
+          query.close();
         }
+      }
+      if (deferred != null) {
+        batch.markIncomplete();
+        budget.defer(deferred);
+      }
 
-        projectQuotas.add(populateProjectQuota(data, values, ts, indexMap, Quotas.RATE));
+      if (tracker != null) {
+        // Checkpoints only advance once the sink wrote the rows of the window they cover
+        batch.whenWritten(tracker::save);
       }
-    } catch (IOException e) {
-      logger.log(
-          Level.SEVERE,
-          "Error fetching timeseries data for project: "
-              + gcpProject.getProjectName()
-              + e.getMessage(),
-          e);
+      if (limits != null) {
+        limits.save();
+      }
+    } finally {
+      scan.close();
     }
-
-    return projectQuotas;
+    return batch;
   }
 
-  private static HashMap<String, Integer> buildIndexMap(TimeSeriesDescriptor labels) {
-    HashMap<String, Integer> indexMap = new HashMap<>();
-    
-    for(int i=0; i<labels.getLabelDescriptorsCount(); i++) {
-      indexMap.put(labels.getLabelDescriptors(i).getKey(), i);
+  /*
+   * API to wait for an asynchronous query and report its outcome to the rate limiter. A query
+   * that failed with a retryable error is retried on its own with backoff.
+   * */
+  private static QueryTimeSeriesPagedResponse getResponse(
+      ApiFuture<QueryTimeSeriesPagedResponse> future,
+      QueryServiceClient queryServiceClient,
+      QueryTimeSeriesRequest request)
+      throws ExecutionException, InterruptedException {
+    try {
+      QueryTimeSeriesPagedResponse response = future.get();
+      AdaptiveRateLimiter.MONITORING.onSuccess();
+      return response;
+    } catch (ExecutionException e) {
+      AdaptiveRateLimiter.MONITORING.onError(e.getCause());
+      if (!AdaptiveRateLimiter.isMonitoringRetryable(e.getCause())) {
+        throw e;
+      }
+      return AdaptiveRateLimiter.MONITORING.call(() -> queryServiceClient.queryTimeSeries(request));
     }
+  }
+
+  /*
+   * API to create an empty batch for the rows of one scan
+   * */
+  static ProjectQuotaBatch createBatch(Timestamp ts) {
+    return new ProjectQuotaBatch(ts.toString(), THRESHOLD == null ? null : Integer.valueOf(THRESHOLD));
+  }
 
-    for(int i=0; i<labels.getPointDescriptorsCount(); i++) {
-      indexMap.put(labels.getPointDescriptors(i).getKey(), i);
+  /*
+   * API to add a query to the continuation of a scan, creating it if needed. With the request
+   * for the rest of its pages the query resumes from its page token.
+   * */
+  private static ScanContinuation defer(
+      ScanContinuation deferred,
+      GCPProject gcpProject,
+      QueryType queryType,
+      QueryTimeSeriesRequest rest) {
+    ScanContinuation continuation =
+        deferred == null ? ScanBudget.continuationOf(gcpProject) : deferred;
+    continuation.getQueryTypes().add(queryType.name());
+    if (rest != null) {
+      continuation.setResumeQueryType(queryType.name());
+      continuation.setQuery(rest.getQuery());
+      continuation.setPageToken(rest.getPageToken());
     }
+    return continuation;
+  }
 
-    return indexMap;
+  /*
+   * API to build the query request of the given type for a project. With cached limits only
+   * the usage is queried, a query stopped between pages resumes with its own query text.
+   * */
+  static QueryTimeSeriesRequest buildQueryRequest(
+      GCPProject gcpProject,
+      QueryType queryType,
+      LocalDate today,
+      RollingWindowTracker tracker,
+      QuotaLimitCache limits) {
+    ScanContinuation continuation = gcpProject.getContinuation();
+    if (continuation != null && queryType.name().equals(continuation.getResumeQueryType())) {
+      return QueryTimeSeriesRequest.newBuilder()
+          .setName(gcpProject.getProjectName())
+          .setQuery(continuation.getQuery())
+          .setPageToken(continuation.getPageToken())
+          .build();
+    }
+    return QueryTimeSeriesRequest.newBuilder()
+        .setName(gcpProject.getProjectName())
+        .setQuery(getMql(gcpProject, queryType, today, tracker, limits))
+        .build();
   }
 
-  private static ProjectQuota populateProjectQuota(
-      TimeSeriesData data, HashMap<String, Long> aggregatedData, Timestamp ts, HashMap<String, Integer> indexMap, Quotas q) {
-    ProjectQuota projectQuota = new ProjectQuota();
+  /*
+   * API to append all pages of a query response to the batch. With a tracker the maximum of
+   * each new row is merged into its rolling window and the query type is checkpointed. With
+   * cached limits each usage series gets a row per limit of the query type; series that are
+   * not in the cache are decoded after the limits were fetched again. With a budget no page
+   * is fetched once it is spent. Returns the token of the next page in that case, otherwise
+   * null.
+   * */
+  static String processResponse(
+      QueryServiceClient queryServiceClient,
+      QueryTimeSeriesRequest request,
+      QueryTimeSeriesPagedResponse response,
+      QueryType queryType,
+      ProjectQuotaBatch batch,
+      LocalDate today,
+      RollingWindowTracker tracker,
+      QuotaLimitCache limits,
+      ScanBudget budget,
+      ScanTelemetry.Operation query) {
+    TimeSeriesDecoder decoder =
+        TimeSeriesDecoder.compile(
+            response.getPage().getResponse().getTimeSeriesDescriptor(), queryType.getQuota());
+    int firstRow = batch.size();
+    // QPS series are de-duplicated across all pages of the response
+    HashMap<String, Integer> perSecondRows = new HashMap<>();
+    // Cloud Monitoring returns UTC timestamps so we need to use end of day UTC to match correctly.
+    long endOfToday = ZonedDateTime.of(today, LocalTime.MAX, ZoneId.of("UTC")).toEpochSecond();
+    // Usage series without cached limits, by series key
+    Map<String, List<TimeSeriesData>> uncached = new HashMap<>();
+    String nextPageToken = null;
+
+    // Pages are requested one at a time, each through the rate limiter
+    for (QueryTimeSeriesPage page = response.getPage();
+        page != null;
+        page = page.hasNextPage() ? nextPage(queryServiceClient, request, page) : null) {
+      long decodeStart = System.nanoTime();
+      for (TimeSeriesData data : page.getValues()) {
+        if (limits == null) {
+          decodeSeries(
+              data, queryType, decoder, batch, endOfToday, tracker, perSecondRows, null, 0);
+          continue;
+        }
+        String seriesKey = decoder.seriesKey(data);
+        Map<String, Long> seriesLimits = limits.get(queryType, seriesKey);
+        if (seriesLimits == null) {
+          uncached.computeIfAbsent(seriesKey, key -> new ArrayList<>()).add(data);
+          continue;
+        }
+        for (Map.Entry<String, Long> limit : seriesLimits.entrySet()) {
+          decodeSeries(data, queryType, decoder, batch, endOfToday, tracker, perSecondRows,
+              limit.getKey(), limit.getValue());
+        }
+      }
+      query.recordPage(page.getResponse(), System.nanoTime() - decodeStart);
+      if (budget != null && page.hasNextPage() && budget.isExpired()) {
+        nextPageToken = page.getNextPageToken();
+        break;
+      }
+    }
+
+    if (!uncached.isEmpty()) {
+      if (limits.refresh(uncached.keySet())) {
+        for (Map.Entry<String, List<TimeSeriesData>> series : uncached.entrySet()) {
+          Map<String, Long> seriesLimits = limits.get(queryType, series.getKey());
+          for (Map.Entry<String, Long> limit : seriesLimits.entrySet()) {
+            for (TimeSeriesData data : series.getValue()) {
+              decodeSeries(data, queryType, decoder, batch, endOfToday, tracker, perSecondRows,
+                  limit.getKey(), limit.getValue());
+            }
+          }
+        }
+      } else {
+        batch.markIncomplete();
+      }
+    }
+
+    if (tracker != null) {
+      if (queryType != QueryType.QPD) {
+        for (int row = firstRow; row < batch.size(); row++) {
+          batch.setMaxUsage(row, tracker.mergeMax(queryType, batch, row, batch.getMaxUsage(row)));
+        }
+      }
+      // A query split across invocations does not cover its window at one point in time, the
+      // next scan queries the full window again
+      if (nextPageToken == null && request.getPageToken().isEmpty()) {
+        tracker.checkpoint(queryType);
+      }
+    }
+    return nextPageToken;
+  }
 
-    projectQuota.setProjectId(data.getLabelValues(indexMap.get("resource.project_id")).getStringValue());
-    projectQuota.setTimestamp(ts.toString());
-    projectQuota.setRegion(data.getLabelValues(indexMap.get("resource.location")).getStringValue());
-    projectQuota.setMetric(data.getLabelValues(indexMap.get("metric.quota_metric")).getStringValue());
+  /*
+   * API to request the page after the given one of a query through the rate limiter, with
+   * its retries and rate adaptation
+   * */
+  static QueryTimeSeriesPage nextPage(
+      QueryServiceClient queryServiceClient,
+      QueryTimeSeriesRequest request,
+      QueryTimeSeriesPage page) {
+    QueryTimeSeriesRequest nextRequest =
+        request.toBuilder().setPageToken(page.getNextPageToken()).build();
+    return AdaptiveRateLimiter.MONITORING
+        .call(() -> queryServiceClient.queryTimeSeries(nextRequest))
+        .getPage();
+  }
 
-    if(q == Quotas.RATE) {
-      projectQuota.setApiMethod(data.getLabelValues(indexMap.get("metric.method")).getStringValue());
+  /*
+   * API to append a series to the batch for one of its limits, without a limit name the
+   * limit is read from the series
+   * */
+  private static void decodeSeries(
+      TimeSeriesData data,
+      QueryType queryType,
+      TimeSeriesDecoder decoder,
+      ProjectQuotaBatch batch,
+      long endOfToday,
+      RollingWindowTracker tracker,
+      HashMap<String, Integer> perSecondRows,
+      String limitName,
+      long limit) {
+    switch (queryType) {
+      case QPD:
+        getPerDayQuota(data, decoder, batch, endOfToday, tracker, limitName, limit);
+        break;
+      case QPS:
+        getPerSecondQuota(data, decoder, batch, perSecondRows, limitName, limit);
+        break;
+      default:
+        decoder.decode(data, limitName, limit, batch);
     }
-    projectQuota.setLimitName(data.getLabelValues(indexMap.get("metric.limit_name")).getStringValue());
-    projectQuota.setQuotaType(q.toString());
+  }
 
-    if(aggregatedData == null) {
-      projectQuota.setCurrentUsage(data.getPointData(0).getValues(indexMap.get("current")).getInt64Value());
-      projectQuota.setMaxUsage(data.getPointData(0).getValues(indexMap.get("maximum")).getInt64Value());
+  private static void getPerSecondQuota(
+      TimeSeriesData data,
+      TimeSeriesDecoder decoder,
+      ProjectQuotaBatch batch,
+      HashMap<String, Integer> rows,
+      String limitName,
+      long limit) {
+    // Later series with the same key replace the row of the earlier one
+    String key =
+        limitName == null ? decoder.perSecondKey(data) : decoder.perSecondKey(data, limitName);
+    Integer row = rows.get(key);
+    if (row == null) {
+      rows.put(key, decoder.decode(data, limitName, limit, batch));
     } else {
-      projectQuota.setCurrentUsage(aggregatedData.get("current"));
-      projectQuota.setMaxUsage(aggregatedData.get("max"));
+      decoder.decode(data, limitName, limit, batch, row);
     }
+  }
 
-    projectQuota.setQuotaLimit(data.getPointData(0).getValues(indexMap.get("limit")).getInt64Value());
-    projectQuota.setThreshold(Integer.valueOf(THRESHOLD));
+  private static void getPerDayQuota(
+      TimeSeriesData data,
+      TimeSeriesDecoder decoder,
+      ProjectQuotaBatch batch,
+      long endOfToday,
+      RollingWindowTracker tracker,
+      String limitName,
+      long limit) {
+    // Aggregate each series on its own, series of a batched scan belong to different projects
+    long[] values = aggregatePerDay(data, decoder, endOfToday);
+    int row = decoder.decode(data, values[0], values[1], limitName, limit, batch);
 
-    return projectQuota;
+    if (tracker != null) {
+      // Keep the daily sums, days before the checkpoint day are served from the window
+      for (PointData pointData : data.getPointDataList()) {
+        tracker.putBucket(QueryType.QPD, batch, row,
+            pointData.getTimeInterval().getEndTime().getSeconds() / 86400,
+            decoder.daily(pointData));
+      }
+      batch.setCurrentUsage(row, tracker.getBucket(QueryType.QPD, batch, row, endOfToday / 86400));
+      batch.setMaxUsage(row, tracker.getWindowMax(QueryType.QPD, batch, row));
+    }
   }
 
-  private static String getMql(Quotas q) {
+  /*
+   * API to aggregate the daily sums of a QPD series into today's usage and the maximum
+   * daily usage, returned as {current, max}
+   * */
+  static long[] aggregatePerDay(TimeSeriesData data, TimeSeriesDecoder decoder, long endOfToday) {
+    long current = 0;
+    long max = 0;
+
+    for (int i = 0; i < data.getPointDataCount(); i++) {
+      PointData pointData = data.getPointData(i);
+      long value = decoder.daily(pointData);
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine(String.format("Current: %d, Max %d, Value %d", current, max, value));
+      }
+
+      if (pointData.getTimeInterval().getEndTime().getSeconds() == endOfToday) {
+        current = value;
+      }
+      if (value > max) {
+        max = value;
+      }
+    }
+
+    return new long[] {current, max};
+  }
+
+  private static String getMql(
+      GCPProject gcpProject,
+      QueryType queryType,
+      LocalDate today,
+      RollingWindowTracker tracker,
+      QuotaLimitCache limits) {
     String mql;
+    long window = tracker == null ? 0 : tracker.getIncrementalWindowSeconds(queryType);
+    boolean usage = limits != null;
 
-    switch (q) {
+    switch (queryType) {
       case ALLOCATION:
-        mql = MQL_ALLOCATION_ALL;
+        if (usage) {
+          mql = window > 0
+              ? formatMql(MQL_ALLOCATION_USAGE_INCREMENTAL, gcpProject, window + "s")
+              : formatMql(MQL_ALLOCATION_USAGE, gcpProject);
+          break;
+        }
+        mql = window > 0
+            ? formatMql(MQL_ALLOCATION_INCREMENTAL, gcpProject, window + "s")
+            : formatMql(REDUCED_RESOLUTION ? MQL_ALLOCATION_ALL_REDUCED : MQL_ALLOCATION_ALL, gcpProject);
+        break;
+      case QPM:
+        if (usage) {
+          mql = window > 0
+              ? formatMql(MQL_RATE_QPM_USAGE_INCREMENTAL, gcpProject, window + "s")
+              : formatMql(MQL_RATE_QPM_USAGE, gcpProject);
+          break;
+        }
+        mql = window > 0
+            ? formatMql(MQL_RATE_QPM_INCREMENTAL, gcpProject, window + "s")
+            : formatMql(REDUCED_RESOLUTION ? MQL_RATE_QPM_REDUCED : MQL_RATE_QPM, gcpProject);
+        break;
+      case QPS:
+        if (usage) {
+          mql = window > 0
+              ? formatMql(MQL_RATE_QPS_USAGE_INCREMENTAL, gcpProject, window + "s")
+              : formatMql(MQL_RATE_QPS_USAGE, gcpProject);
+          break;
+        }
+        mql = window > 0
+            ? formatMql(MQL_RATE_QPS_INCREMENTAL, gcpProject, window + "s")
+            : formatMql(REDUCED_RESOLUTION ? MQL_RATE_QPS_REDUCED : MQL_RATE_QPS, gcpProject);
         break;
-      case RATE:
-        mql = MQL_RATE_QPM;
+      case QPD:
+        // This needs to align to the day boundaries as closely as possible to that we get an
+        // accurate view into same window as the quota system.
+        ZonedDateTime endOfDay = ZonedDateTime.of(today, LocalTime.MAX, ZoneId.of("America/Los_Angeles"));
+        String endOfDayString = endOfDay.format(DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss"));
+        int days = tracker == null ? 0 : tracker.getIncrementalDays(queryType);
+        if (usage) {
+          mql = days > 0
+              ? formatMql(MQL_RATE_QPD_USAGE_INCREMENTAL, gcpProject, endOfDayString, days + "d")
+              : formatMql(MQL_RATE_QPD_USAGE, gcpProject, endOfDayString);
+          break;
+        }
+        mql = days > 0
+            ? formatMql(MQL_RATE_QPD_INCREMENTAL, gcpProject, endOfDayString, days + "d")
+            : formatMql(REDUCED_RESOLUTION ? MQL_RATE_QPD_REDUCED : MQL_RATE_QPD,
+                gcpProject,
+                endOfDayString
+            );
         break;
       default:
         mql = "";
@@ -352,14 +995,56 @@ public class ScanProjectQuotasHelper {
   }
 
   /*
-   * API to load data into BigQuery
+   * API to fill in the project filter of an MQL template. A batched scan matches all of its
+   * project Ids with one regular expression, the other arguments are passed as %2$s onwards.
+   * */
+  static String formatMql(String template, GCPProject gcpProject, Object... args) {
+    Object[] formatArgs = new Object[args.length + 1];
+    System.arraycopy(args, 0, formatArgs, 1, args.length);
+
+    List<String> projectIds = gcpProject.getProjectIds();
+    if (projectIds == null || projectIds.isEmpty()) {
+      formatArgs[0] = gcpProject.getProjectId();
+      return String.format(template, formatArgs);
+    }
+
+    formatArgs[0] = projectIdRegex(projectIds);
+    return String.format(template.replace(PROJECT_FILTER, PROJECT_BATCH_FILTER), formatArgs);
+  }
+
+  /*
+   * API to build a regular expression matching exactly the given project Ids
+   * */
+  static String projectIdRegex(List<String> projectIds) {
+    StringBuilder regex = new StringBuilder("(");
+    for (int i = 0; i < projectIds.size(); i++) {
+      if (i > 0) {
+        regex.append('|');
+      }
+      // Domain scoped project Ids contain '.', match it literally without escaping
+      regex.append(projectIds.get(i).replace(".", "[.]"));
+    }
+    return regex.append(')').toString();
+  }
+
+  /*
+   * API to load data into BigQuery through the configured sink, telemetry is tagged with the
+   * project and quota type of the scan
    * */
   static void loadBigQueryTable(
       GCPResourceClient gcpResourceClient,
-      List<ProjectQuota> projectQuotas) {
-    for (ProjectQuota pq : projectQuotas) {
-      Map<String, Object> row = createBQRow(pq);
-      tableInsertRows(gcpResourceClient, row);
+      GCPProject gcpProject,
+      String quotaType,
+      ProjectQuotaBatch batch) {
+    ProjectQuotaSink sink = getSink(gcpResourceClient);
+    ScanTelemetry.Operation write = ScanTelemetry.startSinkWrite(gcpProject, quotaType, batch);
+    try {
+      sink.write(batch);
+    } catch (RuntimeException e) {
+      write.recordError(e);
+      throw e;
+    } finally {
+      write.close();
     }
   }
 
@@ -386,6 +1071,30 @@ public class ScanProjectQuotasHelper {
     return rowContent;
   }
 
+  /*
+   * API to build BigQuery row content from one row of a batch
+   * */
+  public static Map<String, Object> createBQRow(ProjectQuotaBatch batch, int row) {
+    Map<String, Object> rowContent = new HashMap<>();
+    String quotaType = batch.getQuotaType(row);
+
+    rowContent.put("project_id", batch.getProjectId(row));
+    rowContent.put("added_at", batch.getTimestamp());
+    rowContent.put("region", batch.getRegion(row));
+    rowContent.put("quota_metric", batch.getMetric(row));
+    if (Quotas.RATE.toString().equals(quotaType)) {
+      rowContent.put("api_method", batch.getApiMethod(row));
+    }
+    rowContent.put("limit_name", batch.getLimitName(row));
+    rowContent.put("quota_type", quotaType);
+    rowContent.put("current_usage", batch.getCurrentUsage(row));
+    rowContent.put("max_usage", batch.getMaxUsage(row));
+    rowContent.put("quota_limit", batch.getQuotaLimit(row));
+    rowContent.put("threshold", batch.getThreshold());
+
+    return rowContent;
+  }
+
   /*
    * API to insert row in table
    * */
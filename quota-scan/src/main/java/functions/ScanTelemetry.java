@@ -0,0 +1,192 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.monitoring.v3.QueryTimeSeriesResponse;
+import com.google.monitoring.v3.TimeSeriesData;
+import functions.ScanProjectQuotasHelper.QueryType;
+import functions.eventpojos.GCPProject;
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+
+/*
+ * OpenTelemetry spans and metrics of the scan stages: the scan of a project, each MQL query
+ * with its pages and decoding, and the writes to the sink. Everything is tagged by project
+ * and quota type. The API is used through GlobalOpenTelemetry, so nothing is exported
+ * unless an SDK is installed, e.g. with the OpenTelemetry Java agent.
+ * */
+public final class ScanTelemetry {
+  private static final String INSTRUMENTATION_NAME = "quota-scan";
+
+  static final AttributeKey<String> PROJECT_ID = AttributeKey.stringKey("project_id");
+  static final AttributeKey<String> QUOTA_TYPE = AttributeKey.stringKey("quota_type");
+  static final AttributeKey<String> QUERY_TYPE = AttributeKey.stringKey("query_type");
+
+  private static final Tracer tracer = GlobalOpenTelemetry.getTracer(INSTRUMENTATION_NAME);
+  private static final Meter meter = GlobalOpenTelemetry.getMeter(INSTRUMENTATION_NAME);
+
+  private static final DoubleHistogram scanDuration =
+      meter.histogramBuilder("quota_scan.scan.duration").setUnit("ms")
+          .setDescription("Time to scan the quotas of a project").build();
+  private static final DoubleHistogram queryDuration =
+      meter.histogramBuilder("quota_scan.query.duration").setUnit("ms")
+          .setDescription("Time of an MQL query including all of its pages").build();
+  private static final DoubleHistogram decodeDuration =
+      meter.histogramBuilder("quota_scan.decode.duration").setUnit("ms")
+          .setDescription("Time spent decoding the pages of an MQL query").build();
+  private static final LongHistogram querySeries =
+      meter.histogramBuilder("quota_scan.query.series").ofLongs().setUnit("{series}")
+          .setDescription("Series returned by an MQL query").build();
+  private static final LongHistogram queryPages =
+      meter.histogramBuilder("quota_scan.query.pages").ofLongs().setUnit("{page}")
+          .setDescription("Pages returned by an MQL query").build();
+  private static final LongHistogram queryBytes =
+      meter.histogramBuilder("quota_scan.query.bytes").ofLongs().setUnit("By")
+          .setDescription("Serialized size of the pages of an MQL query").build();
+  private static final LongHistogram pointsPerSeries =
+      meter.histogramBuilder("quota_scan.query.points_per_series").ofLongs().setUnit("{point}")
+          .setDescription("Points per series returned by an MQL query").build();
+  private static final DoubleHistogram sinkWriteDuration =
+      meter.histogramBuilder("quota_scan.sink.write.duration").setUnit("ms")
+          .setDescription("Time to write the rows of a scan to the sink").build();
+  private static final LongCounter rowsWritten =
+      meter.counterBuilder("quota_scan.sink.rows").setUnit("{row}")
+          .setDescription("Rows written to the sink").build();
+  private static final LongCounter insertErrors =
+      meter.counterBuilder("quota_scan.sink.errors").setUnit("{row}")
+          .setDescription("Rows rejected by BigQuery").build();
+
+  private ScanTelemetry() {}
+
+  /*
+   * API to start the span of a project scan, it is current until the operation is closed
+   * */
+  public static Operation startScan(GCPProject gcpProject, String quotaType) {
+    Attributes attributes =
+        Attributes.of(PROJECT_ID, gcpProject.getProjectId(), QUOTA_TYPE, quotaType);
+    return new Operation("scan " + quotaType, attributes, scanDuration, true);
+  }
+
+  /*
+   * API to start the span of one MQL query, pages are recorded on the returned operation
+   * */
+  public static Operation startQuery(GCPProject gcpProject, QueryType queryType) {
+    Attributes attributes =
+        Attributes.of(
+            PROJECT_ID, gcpProject.getProjectId(),
+            QUOTA_TYPE, queryType.getQuota().toString(),
+            QUERY_TYPE, queryType.name());
+    return new Operation("query " + queryType.name(), attributes, queryDuration, false);
+  }
+
+  /*
+   * API to start the span of a sink write of a project scan
+   * */
+  public static Operation startSinkWrite(
+      GCPProject gcpProject, String quotaType, ProjectQuotaBatch batch) {
+    Attributes attributes =
+        Attributes.of(PROJECT_ID, gcpProject.getProjectId(), QUOTA_TYPE, quotaType);
+    Operation operation = new Operation("sink write", attributes, sinkWriteDuration, false);
+    operation.span.setAttribute("rows", batch.size());
+    return operation;
+  }
+
+  /*
+   * API to count rows the sink wrote successfully, once the destination accepted them
+   * */
+  public static void recordRowsWritten(String projectId, String quotaType, long rows) {
+    rowsWritten.add(
+        rows,
+        Attributes.of(
+            PROJECT_ID, String.valueOf(projectId), QUOTA_TYPE, String.valueOf(quotaType)));
+  }
+
+  /*
+   * API to count rows rejected by BigQuery
+   * */
+  public static void recordInsertErrors(String projectId, String quotaType, long rows) {
+    insertErrors.add(
+        rows,
+        Attributes.of(
+            PROJECT_ID, String.valueOf(projectId), QUOTA_TYPE, String.valueOf(quotaType)));
+  }
+
+  /*
+   * A span with the duration histogram recorded when it is closed
+   * */
+  public static final class Operation implements AutoCloseable {
+    private final Span span;
+    private final Attributes attributes;
+    private final DoubleHistogram duration;
+    private final Scope scope;
+    private final long startNanos = System.nanoTime();
+
+    private long series;
+    private long pages;
+    private long bytes;
+    private long decodeNanos;
+
+    private Operation(String name, Attributes attributes, DoubleHistogram duration, boolean current) {
+      this.span = tracer.spanBuilder(name).setAllAttributes(attributes).startSpan();
+      this.attributes = attributes;
+      this.duration = duration;
+      this.scope = current ? span.makeCurrent() : null;
+    }
+
+    /*
+     * API to record a page of a query response and the time spent decoding it
+     * */
+    public void recordPage(QueryTimeSeriesResponse page, long pageDecodeNanos) {
+      pages++;
+      bytes += page.getSerializedSize();
+      decodeNanos += pageDecodeNanos;
+      for (TimeSeriesData data : page.getTimeSeriesDataList()) {
+        pointsPerSeries.record(data.getPointDataCount(), attributes);
+      }
+      series += page.getTimeSeriesDataCount();
+    }
+
+    public void recordError(Throwable error) {
+      span.recordException(error);
+      span.setStatus(StatusCode.ERROR, String.valueOf(error.getMessage()));
+    }
+
+    @Override
+    public void close() {
+      duration.record((System.nanoTime() - startNanos) / 1e6, attributes);
+      if (pages > 0) {
+        querySeries.record(series, attributes);
+        queryPages.record(pages, attributes);
+        queryBytes.record(bytes, attributes);
+        decodeDuration.record(decodeNanos / 1e6, attributes);
+        span.setAttribute("series", series);
+        span.setAttribute("pages", pages);
+        span.setAttribute("bytes", bytes);
+      }
+      if (scope != null) {
+        scope.close();
+      }
+      span.end();
+    }
+  }
+}
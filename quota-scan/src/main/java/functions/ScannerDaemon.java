@@ -0,0 +1,197 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import functions.eventpojos.GCPProject;
+import functions.eventpojos.GCPResourceClient;
+import functions.eventpojos.InventoryProject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Long-running scanner that replaces the ListProjects and ScanProjectQuotas functions with
+ * one process. It keeps the project inventory of DAEMON_PARENTS and scans every eligible
+ * project once per DAEMON_SCAN_INTERVAL_MINUTES with the same scan as the function, on warm
+ * clients. Scans run on virtual threads when the JVM has them, with at most
+ * DAEMON_MAX_IN_FLIGHT scans at a time.
+ *
+ * With SHARD_INDEX and SHARD_COUNT, a daemon only scans the projects of its shard. A daemon
+ * is the only scanner of its projects, so their rolling window state is also kept in memory
+ * and only read from the state bucket after a restart or a change of the shard count.
+ * With ADAPTIVE_SCAN, each round only scans the projects the adaptive scheduler picks.
+ *
+ * Run with the scan function environment variables and:
+ *   mvn compile exec:java -Dexec.mainClass=functions.ScannerDaemon
+ * */
+public class ScannerDaemon {
+  private static final Logger logger = Logger.getLogger(ScannerDaemon.class.getName());
+
+  // Comma separated organizations and folders to scan, e.g. "organizations/123,folders/456"
+  public static final List<String> DAEMON_PARENTS = EnvironmentConfig.getList("DAEMON_PARENTS");
+  // Minutes between the starts of two scans of the inventory
+  public static final int DAEMON_SCAN_INTERVAL_MINUTES =
+      EnvironmentConfig.getInt("DAEMON_SCAN_INTERVAL_MINUTES", 15);
+  // Minutes between two refreshes of the inventory
+  public static final int DAEMON_INVENTORY_REFRESH_MINUTES =
+      EnvironmentConfig.getInt("DAEMON_INVENTORY_REFRESH_MINUTES", 60);
+  // Scans in flight at the same time
+  public static final int DAEMON_MAX_IN_FLIGHT = EnvironmentConfig.getInt("DAEMON_MAX_IN_FLIGHT", 64);
+
+  private final List<String> parents;
+  private final ExecutorService executor;
+  private final Semaphore inFlight;
+  private final int maxInFlight;
+
+  private List<InventoryProject> inventory = new ArrayList<>();
+  private long inventoryRefreshedAt;
+  private volatile boolean running = true;
+
+  ScannerDaemon(List<String> parents, int maxInFlight) {
+    this.parents = parents;
+    this.executor = createExecutor();
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.inFlight = new Semaphore(this.maxInFlight);
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    if (DAEMON_PARENTS.isEmpty()) {
+      logger.severe("DAEMON_PARENTS is not set");
+      System.exit(1);
+    }
+    RollingWindowTracker.enableLocalCache();
+    ScannerDaemon daemon = new ScannerDaemon(DAEMON_PARENTS, DAEMON_MAX_IN_FLIGHT);
+    Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop));
+    daemon.run();
+  }
+
+  /*
+   * API to scan the inventory every interval until the daemon is stopped
+   * */
+  public void run() throws InterruptedException {
+    long intervalMillis = TimeUnit.MINUTES.toMillis(Math.max(1, DAEMON_SCAN_INTERVAL_MINUTES));
+    while (running) {
+      long start = System.currentTimeMillis();
+      try {
+        scanInventory();
+      } catch (IOException | RuntimeException e) {
+        logger.log(Level.SEVERE, "Error scanning inventory: " + e.getMessage(), e);
+      }
+      long elapsed = System.currentTimeMillis() - start;
+      logger.info("Scanned inventory of " + parents + " in " + elapsed + " ms");
+      if (running && elapsed < intervalMillis) {
+        synchronized (this) {
+          wait(intervalMillis - elapsed);
+        }
+      }
+    }
+  }
+
+  /*
+   * API to stop scheduling scans, wait for the scans in flight and send the rows the sink
+   * still buffers
+   * */
+  public void stop() {
+    running = false;
+    synchronized (this) {
+      notifyAll();
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      ScanProjectQuotasHelper.getSink(ScanProjectQuotasHelper.getGCPResourceClient()).flush();
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "Error flushing the sink: " + e.getMessage(), e);
+    }
+  }
+
+  /*
+   * API to scan the eligible projects of the inventory once, refreshing it first if it is due
+   * */
+  void scanInventory() throws IOException, InterruptedException {
+    long now = System.currentTimeMillis();
+    if (now - inventoryRefreshedAt
+        >= TimeUnit.MINUTES.toMillis(Math.max(1, DAEMON_INVENTORY_REFRESH_MINUTES))) {
+      inventory = ProjectInventory.listProjects(parents);
+      inventoryRefreshedAt = now;
+    }
+
+    ScanEligibilityFilter filter = ScanEligibilityFilter.load();
+    List<String> projectIds = ShardRing.ownedProjectIds(filter.filter(inventory));
+    filter.complete();
+    if (AdaptiveScanScheduler.ADAPTIVE_SCAN) {
+      AdaptiveScanScheduler scheduler =
+          AdaptiveScanScheduler.load(
+              null,
+              ScanProjectQuotas.BIG_QUERY_DATASET,
+              ScanProjectQuotas.BIG_QUERY_TABLE,
+              EnvironmentConfig.getInt("THRESHOLD", 80));
+      projectIds = scheduler.select(projectIds);
+      scheduler.save();
+    }
+
+    GCPResourceClient gcpResourceClient = ScanProjectQuotasHelper.getGCPResourceClient();
+    List<GCPProject> targets = ScanProjectQuotas.getScanTargets(projectIds);
+    for (GCPProject gcpProject : targets) {
+      if (!running) {
+        break;
+      }
+      inFlight.acquire();
+      if (executor.isShutdown()) {
+        inFlight.release();
+        break;
+      }
+      executor.execute(
+          () -> {
+            try {
+              ScanProjectQuotas.scanProject(gcpResourceClient, gcpProject);
+            } catch (Exception e) {
+              logger.log(
+                  Level.SEVERE,
+                  "Error scanning project " + gcpProject.getProjectId() + ": " + e.getMessage(),
+                  e);
+            } finally {
+              inFlight.release();
+            }
+          });
+    }
+    // Wait for the last scans of this round
+    inFlight.acquire(maxInFlight);
+    inFlight.release(maxInFlight);
+  }
+
+  /*
+   * API to create a virtual thread per task executor on Java 21 and later, and a cached
+   * thread pool on older JVMs. The in-flight limit bounds the threads of either.
+   * */
+  static ExecutorService createExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      logger.info("Virtual threads are not available, using a cached thread pool");
+      return Executors.newCachedThreadPool();
+    }
+  }
+}
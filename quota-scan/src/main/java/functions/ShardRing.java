@@ -0,0 +1,115 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Consistent-hash ring that assigns projects to scanner shards. Every shard owns
+ * VIRTUAL_NODES points on the ring and a project belongs to the first point at or after its
+ * hash, so when the shard count changes only about 1/N of the projects move to another shard.
+ *
+ * A scanner is bound to a shard with SHARD_INDEX and SHARD_COUNT. ListProjects publishes
+ * the Ids of each shard in separate messages with a "shard" attribute, so a subscription
+ * filter such as attributes.shard = "2" delivers a shard to its scanner.
+ * */
+public final class ShardRing {
+  // Shard of this scanner, from 0 to SHARD_COUNT - 1
+  public static final int SHARD_INDEX = EnvironmentConfig.getInt("SHARD_INDEX", 0);
+  // Number of scanner shards, 0 or 1 scans every project
+  public static final int SHARD_COUNT = EnvironmentConfig.getInt("SHARD_COUNT", 0);
+
+  // Pub/Sub message attribute with the shard of the project Ids of the message
+  public static final String SHARD_ATTRIBUTE = "shard";
+
+  private static final int VIRTUAL_NODES = 128;
+  private static final Map<Integer, NavigableMap<Long, Integer>> rings = new ConcurrentHashMap<>();
+
+  private ShardRing() {}
+
+  /*
+   * API to check whether this scanner only scans its own shard
+   * */
+  public static boolean isSharded() {
+    return SHARD_COUNT > 1;
+  }
+
+  /*
+   * API to get the shard of a project among shardCount shards
+   * */
+  public static int shardOf(String projectId, int shardCount) {
+    if (shardCount <= 1) {
+      return 0;
+    }
+    NavigableMap<Long, Integer> ring = rings.computeIfAbsent(shardCount, ShardRing::buildRing);
+    Map.Entry<Long, Integer> node = ring.ceilingEntry(hash(projectId));
+    return node != null ? node.getValue() : ring.firstEntry().getValue();
+  }
+
+  /*
+   * API to check whether a project belongs to the shard of this scanner
+   * */
+  public static boolean owns(String projectId) {
+    return !isSharded() || shardOf(projectId, SHARD_COUNT) == SHARD_INDEX;
+  }
+
+  /*
+   * API to keep the project Ids that belong to the shard of this scanner
+   * */
+  public static List<String> ownedProjectIds(List<String> projectIds) {
+    if (!isSharded()) {
+      return projectIds;
+    }
+    List<String> owned = new ArrayList<>();
+    for (String projectId : projectIds) {
+      if (owns(projectId)) {
+        owned.add(projectId);
+      }
+    }
+    return owned;
+  }
+
+  private static NavigableMap<Long, Integer> buildRing(int shardCount) {
+    NavigableMap<Long, Integer> ring = new TreeMap<>();
+    for (int shard = 0; shard < shardCount; shard++) {
+      for (int node = 0; node < VIRTUAL_NODES; node++) {
+        ring.put(hash("shard-" + shard + "-" + node), shard);
+      }
+    }
+    return ring;
+  }
+
+  private static long hash(String key) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM provides MD5
+      throw new IllegalStateException(e);
+    }
+    long hash = 0;
+    for (int i = 0; i < Long.BYTES; i++) {
+      hash = (hash << 8) | (digest[i] & 0xff);
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.Storage.BlobListOption;
+import com.google.cloud.storage.StorageException;
+import com.google.cloud.storage.StorageOptions;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * JSON state persisted in a Cloud Storage bucket so it survives between scans and is shared
+ * by all function instances. Read and write failures are logged and treated as missing state.
+ * */
+public final class StateStore {
+  private static final Logger logger = Logger.getLogger(StateStore.class.getName());
+
+  // Cloud Function Environment variable for the bucket that stores scan state
+  public static final String STATE_BUCKET = EnvironmentConfig.getString("SCAN_STATE_BUCKET", null);
+
+  private static final Gson gson = new Gson();
+  private static Storage storage;
+
+  private StateStore() {}
+
+  public static boolean isEnabled() {
+    return STATE_BUCKET != null;
+  }
+
+  private static synchronized Storage getStorage() {
+    if (storage == null) {
+      storage = StorageOptions.getDefaultInstance().getService();
+    }
+    return storage;
+  }
+
+  /*
+   * API to read a state object, returns null if it does not exist or cannot be read
+   * */
+  public static <T> T read(String name, Class<T> type) {
+    if (!isEnabled()) {
+      return null;
+    }
+    try {
+      Blob blob = getStorage().get(BlobId.of(STATE_BUCKET, name));
+      if (blob == null) {
+        return null;
+      }
+      return gson.fromJson(new String(blob.getContent(), StandardCharsets.UTF_8), type);
+    } catch (StorageException | JsonParseException e) {
+      logger.log(Level.WARNING, "Error reading state " + name + ": " + e.getMessage(), e);
+      return null;
+    }
+  }
+
+  /*
+   * API to write a state object, replacing any previous version
+   * */
+  public static void write(String name, Object state) {
+    if (!isEnabled()) {
+      return;
+    }
+    try {
+      BlobInfo blobInfo =
+          BlobInfo.newBuilder(BlobId.of(STATE_BUCKET, name)).setContentType("application/json").build();
+      getStorage().create(blobInfo, gson.toJson(state).getBytes(StandardCharsets.UTF_8));
+    } catch (StorageException e) {
+      logger.log(Level.WARNING, "Error writing state " + name + ": " + e.getMessage(), e);
+    }
+  }
+
+  /*
+   * API to delete a state object, missing objects are ignored
+   * */
+  public static void delete(String name) {
+    if (!isEnabled()) {
+      return;
+    }
+    try {
+      getStorage().delete(BlobId.of(STATE_BUCKET, name));
+    } catch (StorageException e) {
+      logger.log(Level.WARNING, "Error deleting state " + name + ": " + e.getMessage(), e);
+    }
+  }
+
+  /*
+   * API to list the state objects below a prefix without reading them. Returns the names
+   * relative to the prefix with their update time in epoch milliseconds.
+   * */
+  public static Map<String, Long> listUpdateTimes(String prefix) {
+    Map<String, Long> updateTimes = new HashMap<>();
+    if (!isEnabled()) {
+      return updateTimes;
+    }
+    try {
+      for (Blob blob :
+          getStorage().list(STATE_BUCKET, BlobListOption.prefix(prefix)).iterateAll()) {
+        Long updateTime = blob.getUpdateTime();
+        updateTimes.put(
+            blob.getName().substring(prefix.length()), updateTime == null ? 0L : updateTime);
+      }
+    } catch (StorageException e) {
+      logger.log(Level.WARNING, "Error listing state " + prefix + ": " + e.getMessage(), e);
+    }
+    return updateTimes;
+  }
+}
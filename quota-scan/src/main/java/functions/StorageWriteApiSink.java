@@ -0,0 +1,422 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.ApiException;
+import com.google.cloud.Timestamp;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.CreateWriteStreamRequest;
+import com.google.cloud.bigquery.storage.v1.ProtoRows;
+import com.google.cloud.bigquery.storage.v1.ProtoSchema;
+import com.google.cloud.bigquery.storage.v1.RowError;
+import com.google.cloud.bigquery.storage.v1.StreamWriter;
+import com.google.cloud.bigquery.storage.v1.TableName;
+import com.google.cloud.bigquery.storage.v1.WriteStream;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import functions.eventpojos.ProjectQuota;
+import io.github.resilience4j.ratelimiter.RequestNotPermitted;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Sink that writes rows through the BigQuery Storage Write API.
+ * Rows are encoded straight to protobuf wire format and appended either to the table's
+ * default stream, shared by all scans on this instance, or to a committed stream also shared
+ * by the scans of the instance. The committed stream is finalized when the sink is closed or
+ * when an append on it fails, the next write then creates a new one. Appends go through the
+ * BigQuery rate limiter like streaming inserts, and failed appends are sent again.
+ * */
+public class StorageWriteApiSink implements ProjectQuotaSink {
+  private static final Logger logger = Logger.getLogger(StorageWriteApiSink.class.getName());
+
+  // Proto schema of a row, field names and types match the quota monitoring table
+  static final DescriptorProto ROW_DESCRIPTOR =
+      DescriptorProto.newBuilder()
+          .setName("ProjectQuotaRow")
+          .addField(field("project_id", 1, FieldDescriptorProto.Type.TYPE_STRING))
+          .addField(field("added_at", 2, FieldDescriptorProto.Type.TYPE_INT64))
+          .addField(field("region", 3, FieldDescriptorProto.Type.TYPE_STRING))
+          .addField(field("quota_metric", 4, FieldDescriptorProto.Type.TYPE_STRING))
+          .addField(field("api_method", 5, FieldDescriptorProto.Type.TYPE_STRING))
+          .addField(field("limit_name", 6, FieldDescriptorProto.Type.TYPE_STRING))
+          .addField(field("quota_type", 7, FieldDescriptorProto.Type.TYPE_STRING))
+          .addField(field("current_usage", 8, FieldDescriptorProto.Type.TYPE_INT64))
+          .addField(field("max_usage", 9, FieldDescriptorProto.Type.TYPE_INT64))
+          .addField(field("quota_limit", 10, FieldDescriptorProto.Type.TYPE_INT64))
+          .addField(field("threshold", 11, FieldDescriptorProto.Type.TYPE_INT64))
+          .build();
+
+  private static final ProtoSchema ROW_SCHEMA =
+      ProtoSchema.newBuilder().setProtoDescriptor(ROW_DESCRIPTOR).build();
+
+  private final BigQueryWriteClient writeClient;
+  private final TableName tableName;
+  private final boolean committedStream;
+  private StreamWriter defaultStreamWriter;
+  // Committed stream of this instance and the offset of its next row
+  private WriteStream committedWriteStream;
+  private StreamWriter committedStreamWriter;
+  private long committedOffset;
+
+  public StorageWriteApiSink(BigQueryWriteClient writeClient, TableName tableName, boolean committedStream) {
+    this.writeClient = writeClient;
+    this.tableName = tableName;
+    this.committedStream = committedStream;
+  }
+
+  /*
+   * API to append the rows of a batch. Appends wait for a BigQuery rate limiter permit, and
+   * requests that fail as a whole are sent again with backoff, up to RETRY_MAX_ATTEMPTS
+   * attempts. Requests with row errors are not sent again.
+   * */
+  @Override
+  public void write(ProjectQuotaBatch batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    List<ByteString> rows = encode(batch);
+    List<int[]> requests = split(rows);
+    try {
+      for (int attempt = 1; !requests.isEmpty(); attempt++) {
+        if (attempt > 1) {
+          Thread.sleep(AdaptiveRateLimiter.fullJitterBackoff(attempt - 1));
+        }
+        requests =
+            committedStream
+                ? appendCommitted(batch, rows, requests, attempt)
+                : await(send(getDefaultStreamWriter(), rows, requests, -1), batch, attempt);
+      }
+    } catch (IOException e) {
+      for (int[] request : requests) {
+        ScanTelemetry.recordInsertErrors(
+            batch.getProjectId(request[0]),
+            batch.getQuotaType(request[0]),
+            request[1] - request[0]);
+      }
+      logger.log(Level.SEVERE, "Storage Write API append not performed: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private synchronized StreamWriter getDefaultStreamWriter() throws IOException {
+    if (defaultStreamWriter == null) {
+      defaultStreamWriter =
+          StreamWriter.newBuilder(tableName.toString() + "/streams/_default", writeClient)
+              .setWriterSchema(ROW_SCHEMA)
+              .build();
+    }
+    return defaultStreamWriter;
+  }
+
+  /*
+   * API to append requests on the committed stream of this instance, rows are visible once
+   * appended and the offsets make each append exactly once. Appends are sent in offset order.
+   * A failed append breaks the sequence: the stream is replaced and the appends of other
+   * writes that were in flight on it fail as well, so every failed request is returned to
+   * be sent again on the new stream.
+   * */
+  private List<int[]> appendCommitted(
+      ProjectQuotaBatch batch, List<ByteString> rows, List<int[]> requests, int attempt)
+      throws IOException, InterruptedException {
+    StreamWriter streamWriter;
+    PendingAppend pending;
+    synchronized (this) {
+      streamWriter = getCommittedStreamWriter();
+      pending = send(streamWriter, rows, requests, committedOffset);
+      for (int[] request : requests) {
+        committedOffset += request[1] - request[0];
+      }
+    }
+    List<int[]> retry = await(pending, batch, attempt);
+    if (pending.failed) {
+      finalizeCommittedStream(streamWriter);
+    }
+    return retry;
+  }
+
+  private synchronized StreamWriter getCommittedStreamWriter() throws IOException {
+    if (committedStreamWriter == null) {
+      committedWriteStream =
+          writeClient.createWriteStream(
+              CreateWriteStreamRequest.newBuilder()
+                  .setParent(tableName.toString())
+                  .setWriteStream(
+                      WriteStream.newBuilder().setType(WriteStream.Type.COMMITTED).build())
+                  .build());
+      committedStreamWriter =
+          StreamWriter.newBuilder(committedWriteStream.getName(), writeClient)
+              .setWriterSchema(ROW_SCHEMA)
+              .build();
+      committedOffset = 0;
+    }
+    return committedStreamWriter;
+  }
+
+  /*
+   * API to close and finalize the committed stream, unless the given writer no longer
+   * writes to it
+   * */
+  private synchronized void finalizeCommittedStream(StreamWriter streamWriter) {
+    if (committedStreamWriter == null || committedStreamWriter != streamWriter) {
+      return;
+    }
+    String streamName = committedWriteStream.getName();
+    committedStreamWriter.close();
+    committedStreamWriter = null;
+    committedWriteStream = null;
+    try {
+      writeClient.finalizeWriteStream(streamName);
+    } catch (ApiException e) {
+      logger.log(Level.WARNING, "Error finalizing write stream " + streamName, e);
+    }
+  }
+
+  /*
+   * API to encode the rows of a batch once, retried requests are sent from the same rows
+   * */
+  private static List<ByteString> encode(ProjectQuotaBatch batch) {
+    List<ByteString> rows = new ArrayList<>(batch.size());
+    RowEncoder encoder = new RowEncoder();
+    for (int index = 0; index < batch.size(); index++) {
+      rows.add(encoder.encode(batch, index));
+    }
+    return rows;
+  }
+
+  /*
+   * API to split encoded rows into requests bounded by the batch row and byte limits, each
+   * request is the range of rows from its first row up to the first row of the next one
+   * */
+  private static List<int[]> split(List<ByteString> rows) {
+    List<int[]> requests = new ArrayList<>();
+    int requestStart = 0;
+    long requestBytes = 0;
+    for (int index = 0; index < rows.size(); index++) {
+      int rowBytes = rows.get(index).size();
+      int requestRows = index - requestStart;
+      if (requestRows > 0
+          && (requestRows >= BigQueryBatchWriter.MAX_BATCH_ROWS
+              || requestBytes + rowBytes > BigQueryBatchWriter.MAX_BATCH_BYTES)) {
+        requests.add(new int[] {requestStart, index});
+        requestStart = index;
+        requestBytes = 0;
+      }
+      requestBytes += rowBytes;
+    }
+    requests.add(new int[] {requestStart, rows.size()});
+    return requests;
+  }
+
+  /*
+   * API to send append requests, each once a rate limiter permit is available. With a base
+   * offset that is not negative, the requests take consecutive stream offsets from it.
+   * */
+  private static PendingAppend send(
+      StreamWriter streamWriter, List<ByteString> rows, List<int[]> requests, long baseOffset) {
+    PendingAppend pending = new PendingAppend();
+    long offset = baseOffset;
+    for (int[] request : requests) {
+      ProtoRows requestRows =
+          ProtoRows.newBuilder()
+              .addAllSerializedRows(rows.subList(request[0], request[1]))
+              .build();
+      ApiFuture<AppendRowsResponse> response;
+      try {
+        AdaptiveRateLimiter.BIG_QUERY.acquire();
+        response =
+            offset < 0
+                ? streamWriter.append(requestRows)
+                : streamWriter.append(requestRows, offset);
+      } catch (RequestNotPermitted e) {
+        response = ApiFutures.immediateFailedFuture(e);
+      }
+      pending.responses.add(response);
+      pending.requests.add(request);
+      if (offset >= 0) {
+        offset += request[1] - request[0];
+      }
+    }
+    return pending;
+  }
+
+  /*
+   * API to wait for the append requests of a batch. Returns the requests that failed as a
+   * whole while attempts are left, the other failures are reported.
+   * */
+  private static List<int[]> await(PendingAppend pending, ProjectQuotaBatch batch, int attempt)
+      throws InterruptedException {
+    boolean lastAttempt = attempt >= AdaptiveRateLimiter.RETRY_MAX_ATTEMPTS;
+    List<int[]> retry = new ArrayList<>();
+    for (int i = 0; i < pending.responses.size(); i++) {
+      int start = pending.requests.get(i)[0];
+      int end = pending.requests.get(i)[1];
+      try {
+        AppendRowsResponse response = pending.responses.get(i).get();
+        if (response.hasError() && !lastAttempt) {
+          pending.failed = true;
+          retry.add(pending.requests.get(i));
+          continue;
+        }
+        AdaptiveRateLimiter.BIG_QUERY.onSuccess();
+        Set<Integer> failedRows = new HashSet<>();
+        for (RowError rowError : response.getRowErrorsList()) {
+          failedRows.add(start + (int) rowError.getIndex());
+          reportFailedRow(batch.get(start + (int) rowError.getIndex()), rowError.getMessage());
+        }
+        // Row errors are logged per row above, a request with row errors appends none of its rows
+        if (response.hasError()) {
+          logger.log(Level.SEVERE, "Storage Write API append error: " + response.getError().getMessage());
+        } else if (!failedRows.isEmpty()) {
+          logger.log(
+              Level.SEVERE,
+              "Storage Write API append rejected " + (end - start) + " rows, "
+                  + failedRows.size() + " of them with row errors");
+        }
+        if (response.hasError() || !failedRows.isEmpty()) {
+          ScanTelemetry.recordInsertErrors(
+              batch.getProjectId(start),
+              batch.getQuotaType(start),
+              end - start - failedRows.size());
+          pending.failed = true;
+          continue;
+        }
+        for (int row = start; row < end; row++) {
+          ScanTelemetry.recordRowsWritten(batch.getProjectId(row), batch.getQuotaType(row), 1);
+        }
+        batch.recordRowsWritten(end - start);
+      } catch (ExecutionException e) {
+        AdaptiveRateLimiter.BIG_QUERY.onError(e.getCause());
+        pending.failed = true;
+        if (!lastAttempt) {
+          retry.add(pending.requests.get(i));
+          continue;
+        }
+        ScanTelemetry.recordInsertErrors(batch.getProjectId(start), batch.getQuotaType(start), end - start);
+        logger.log(Level.SEVERE, "Storage Write API append failed for " + (end - start) + " rows: "
+            + e.getCause().getMessage(), e.getCause());
+      }
+    }
+    return retry;
+  }
+
+  private static void reportFailedRow(ProjectQuota projectQuota, String error) {
+    ScanTelemetry.recordInsertErrors(projectQuota.getProjectId(), projectQuota.getQuotaType(), 1);
+    logger.log(
+        Level.SEVERE,
+        "Storage Write API row error for project: "
+            + projectQuota.getProjectId()
+            + ", metric: "
+            + projectQuota.getMetric()
+            + ", limit: "
+            + projectQuota.getLimitName()
+            + ", region: "
+            + projectQuota.getRegion()
+            + " "
+            + error);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (defaultStreamWriter != null) {
+      defaultStreamWriter.close();
+      defaultStreamWriter = null;
+    }
+    finalizeCommittedStream(committedStreamWriter);
+  }
+
+  private static FieldDescriptorProto field(String name, int number, FieldDescriptorProto.Type type) {
+    return FieldDescriptorProto.newBuilder()
+        .setName(name)
+        .setNumber(number)
+        .setType(type)
+        .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+        .build();
+  }
+
+  /*
+   * Append requests sent for a batch with the range of batch rows of each of them, failed is
+   * set once any of them did not append its rows
+   * */
+  private static class PendingAppend {
+    private final List<ApiFuture<AppendRowsResponse>> responses = new ArrayList<>();
+    private final List<int[]> requests = new ArrayList<>();
+    private boolean failed;
+  }
+
+  /*
+   * Encodes batch rows in the wire format of ROW_DESCRIPTOR. Null values are left out so
+   * they load as NULL. The added_at timestamp is shared by all rows of a batch, so the last
+   * parsed value is reused.
+   * */
+  static class RowEncoder {
+    private String lastTimestamp;
+    private long lastTimestampMicros;
+
+    ByteString encode(ProjectQuotaBatch batch, int row) {
+      try {
+        ByteString.Output output = ByteString.newOutput(128);
+        CodedOutputStream stream = CodedOutputStream.newInstance(output);
+        writeString(stream, 1, batch.getProjectId(row));
+        if (batch.getTimestamp() != null) {
+          stream.writeInt64(2, toMicros(batch.getTimestamp()));
+        }
+        writeString(stream, 3, batch.getRegion(row));
+        writeString(stream, 4, batch.getMetric(row));
+        writeString(stream, 5, batch.getApiMethod(row));
+        writeString(stream, 6, batch.getLimitName(row));
+        writeString(stream, 7, batch.getQuotaType(row));
+        stream.writeInt64(8, batch.getCurrentUsage(row));
+        stream.writeInt64(9, batch.getMaxUsage(row));
+        stream.writeInt64(10, batch.getQuotaLimit(row));
+        if (batch.getThreshold() != null) {
+          stream.writeInt64(11, batch.getThreshold());
+        }
+        stream.flush();
+        return output.toByteString();
+      } catch (IOException e) {
+        // Writing to an in-memory ByteString.Output does not throw
+        throw new IllegalStateException(e);
+      }
+    }
+
+    private long toMicros(String timestamp) {
+      if (!timestamp.equals(lastTimestamp)) {
+        Timestamp parsed = Timestamp.parseTimestamp(timestamp);
+        lastTimestampMicros = parsed.getSeconds() * 1_000_000L + parsed.getNanos() / 1_000;
+        lastTimestamp = timestamp;
+      }
+      return lastTimestampMicros;
+    }
+
+    private static void writeString(CodedOutputStream stream, int field, String value)
+        throws IOException {
+      if (value != null) {
+        stream.writeString(field, value);
+      }
+    }
+  }
+}
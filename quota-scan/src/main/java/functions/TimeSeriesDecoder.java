@@ -0,0 +1,222 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions;
+
+import com.google.monitoring.v3.LabelValue;
+import com.google.monitoring.v3.TimeSeriesData;
+import com.google.monitoring.v3.TimeSeriesData.PointData;
+import com.google.monitoring.v3.TimeSeriesDescriptor;
+import functions.ScanProjectQuotasHelper.Quotas;
+
+/*
+ * Decoder for the TimeSeriesData of one query response. The TimeSeriesDescriptor is
+ * compiled once into fixed label and point value slots, so decoding a series does no
+ * string keyed lookups. Rows are appended to a ProjectQuotaBatch, which dictionary
+ * encodes the label values.
+ * */
+public final class TimeSeriesDecoder {
+  static final int MISSING = -1;
+
+  private final int projectIdSlot;
+  private final int locationSlot;
+  private final int quotaMetricSlot;
+  private final int limitNameSlot;
+  private final int methodSlot;
+
+  private final int currentSlot;
+  private final int maximumSlot;
+  private final int limitSlot;
+  private final int dailySlot;
+
+  private final String quotaType;
+
+  private TimeSeriesDecoder(TimeSeriesDescriptor descriptor, Quotas quota) {
+    projectIdSlot = labelSlot(descriptor, "resource.project_id");
+    locationSlot = labelSlot(descriptor, "resource.location");
+    quotaMetricSlot = labelSlot(descriptor, "metric.quota_metric");
+    limitNameSlot = labelSlot(descriptor, "metric.limit_name");
+    methodSlot = quota == Quotas.RATE ? labelSlot(descriptor, "metric.method") : MISSING;
+
+    currentSlot = pointSlot(descriptor, "current");
+    maximumSlot = pointSlot(descriptor, "maximum");
+    limitSlot = pointSlot(descriptor, "limit");
+    dailySlot = pointSlot(descriptor, "daily");
+
+    quotaType = quota.toString();
+  }
+
+  /*
+   * API to compile the descriptor of a query response
+   * */
+  public static TimeSeriesDecoder compile(TimeSeriesDescriptor descriptor, Quotas quota) {
+    return new TimeSeriesDecoder(descriptor, quota);
+  }
+
+  private static int labelSlot(TimeSeriesDescriptor descriptor, String key) {
+    for (int i = 0; i < descriptor.getLabelDescriptorsCount(); i++) {
+      if (descriptor.getLabelDescriptors(i).getKey().equals(key)) {
+        return i;
+      }
+    }
+    return MISSING;
+  }
+
+  private static int pointSlot(TimeSeriesDescriptor descriptor, String key) {
+    for (int i = 0; i < descriptor.getPointDescriptorsCount(); i++) {
+      if (descriptor.getPointDescriptors(i).getKey().equals(key)) {
+        return i;
+      }
+    }
+    return MISSING;
+  }
+
+  /*
+   * API to append a series to the batch, usage values are read from the newest point.
+   * Returns the row index.
+   * */
+  public int decode(TimeSeriesData data, ProjectQuotaBatch batch) {
+    return decode(data, null, 0, batch);
+  }
+
+  /*
+   * API to append a usage series to the batch with a limit from the QuotaLimitCache. Without
+   * a limit name the limit is read from the series.
+   * */
+  public int decode(TimeSeriesData data, String limitName, long limit, ProjectQuotaBatch batch) {
+    PointData point = data.getPointData(0);
+    return decode(
+        data, int64(point, currentSlot), int64(point, maximumSlot), limitName, limit, batch);
+  }
+
+  /*
+   * API to append a series to the batch with usage values aggregated by the caller
+   * */
+  public int decode(TimeSeriesData data, long currentUsage, long maxUsage, ProjectQuotaBatch batch) {
+    return decode(data, currentUsage, maxUsage, null, 0, batch);
+  }
+
+  /*
+   * API to append a series to the batch with usage values aggregated by the caller and a
+   * limit from the QuotaLimitCache, without a limit name the limit is read from the series
+   * */
+  public int decode(
+      TimeSeriesData data,
+      long currentUsage,
+      long maxUsage,
+      String limitName,
+      long limit,
+      ProjectQuotaBatch batch) {
+    if (limitName == null) {
+      limitName = label(data, limitNameSlot);
+      limit = int64(data.getPointData(0), limitSlot);
+    }
+    return batch.add(
+        label(data, projectIdSlot),
+        label(data, locationSlot),
+        label(data, quotaMetricSlot),
+        label(data, methodSlot),
+        limitName,
+        quotaType,
+        currentUsage,
+        maxUsage,
+        limit);
+  }
+
+  /*
+   * API to overwrite a row of the batch with a series, usage values are read from the newest point
+   * */
+  public void decode(TimeSeriesData data, ProjectQuotaBatch batch, int row) {
+    decode(data, null, 0, batch, row);
+  }
+
+  /*
+   * API to overwrite a row of the batch with a usage series and a limit from the
+   * QuotaLimitCache, without a limit name the limit is read from the series
+   * */
+  public void decode(
+      TimeSeriesData data, String limitName, long limit, ProjectQuotaBatch batch, int row) {
+    PointData point = data.getPointData(0);
+    if (limitName == null) {
+      limitName = label(data, limitNameSlot);
+      limit = int64(point, limitSlot);
+    }
+    batch.set(
+        row,
+        label(data, projectIdSlot),
+        label(data, locationSlot),
+        label(data, quotaMetricSlot),
+        label(data, methodSlot),
+        limitName,
+        quotaType,
+        int64(point, currentSlot),
+        int64(point, maximumSlot),
+        limit);
+  }
+
+  /*
+   * API to build the key QPS series are de-duplicated by: project, limit name and location
+   * */
+  public String perSecondKey(TimeSeriesData data) {
+    return perSecondKey(data, label(data, limitNameSlot));
+  }
+
+  /*
+   * API to build the key of a QPS series for a limit from the QuotaLimitCache
+   * */
+  public String perSecondKey(TimeSeriesData data, String limitName) {
+    return label(data, projectIdSlot) + limitName + label(data, locationSlot);
+  }
+
+  /*
+   * API to build the key usage series and their limits are matched by: project, location
+   * and quota metric, the labels the queries join on
+   * */
+  public String seriesKey(TimeSeriesData data) {
+    return label(data, projectIdSlot) + "|" + label(data, locationSlot) + "|"
+        + label(data, quotaMetricSlot);
+  }
+
+  /*
+   * API to get the limit name of a limit series
+   * */
+  public String limitName(TimeSeriesData data) {
+    return label(data, limitNameSlot);
+  }
+
+  /*
+   * API to get the limit of a limit series from its newest point
+   * */
+  public long limit(TimeSeriesData data) {
+    return int64(data.getPointData(0), limitSlot);
+  }
+
+  /*
+   * API to get the daily sum of a QPD point
+   * */
+  public long daily(PointData point) {
+    return int64(point, dailySlot);
+  }
+
+  private static String label(TimeSeriesData data, int slot) {
+    if (slot == MISSING) {
+      return null;
+    }
+    LabelValue labelValue = data.getLabelValues(slot);
+    return labelValue.getStringValue();
+  }
+
+  private static long int64(PointData point, int slot) {
+    return slot == MISSING ? 0 : point.getValues(slot).getInt64Value();
+  }
+}
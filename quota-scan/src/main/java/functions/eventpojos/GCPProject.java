@@ -13,9 +13,18 @@ Copyright 2023 Google LLC
 
 package functions.eventpojos;
 
+import java.util.List;
+
+/*
+ * POJO for the project a scan runs against. For a batched scan the project is the metrics
+ * scope host project and projectIds lists the projects covered by its queries. A scan
+ * resumed from a continuation message only runs the queries of its continuation.
+ * */
 public class GCPProject {
   private String projectId;
   private String projectName;
+  private List<String> projectIds;
+  private ScanContinuation continuation;
 
   public String getProjectId() {
     return projectId;
@@ -32,4 +41,20 @@ public class GCPProject {
   public void setProjectName(String projectName) {
     this.projectName = projectName;
   }
+
+  public List<String> getProjectIds() {
+    return projectIds;
+  }
+
+  public void setProjectIds(List<String> projectIds) {
+    this.projectIds = projectIds;
+  }
+
+  public ScanContinuation getContinuation() {
+    return continuation;
+  }
+
+  public void setContinuation(ScanContinuation continuation) {
+    this.continuation = continuation;
+  }
 }
@@ -18,15 +18,17 @@ package functions.eventpojos;
 
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.TableId;
+import functions.ProjectQuotaSink;
 
 /*
  * Class to store references of GCP client resources.
  * Stores references for BigQuery, Region and Network client.
- * Reference for BigQuery table also.
+ * Reference for BigQuery table also, and the sink scan results are written to.
  * */
 public class GCPResourceClient {
   private BigQuery bigQuery;
   private TableId tableId;
+  private ProjectQuotaSink sink;
 
   public BigQuery getBigQuery() {
     return bigQuery;
@@ -43,4 +45,12 @@ public class GCPResourceClient {
   public void setTableId(TableId tableId) {
     this.tableId = tableId;
   }
+
+  public ProjectQuotaSink getSink() {
+    return sink;
+  }
+
+  public void setSink(ProjectQuotaSink sink) {
+    this.sink = sink;
+  }
 }
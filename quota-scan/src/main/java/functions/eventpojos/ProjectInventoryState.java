@@ -0,0 +1,52 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions.eventpojos;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * POJO for the project inventory of a set of parent nodes, persisted between listings.
+ * Projects are keyed by resource name, the times are epoch seconds of the last refresh
+ * and the last full refresh.
+ * */
+public class ProjectInventoryState {
+  private long refreshedAt;
+  private long fullRefreshAt;
+  private Map<String, InventoryProject> projects = new LinkedHashMap<>();
+
+  public long getRefreshedAt() {
+    return refreshedAt;
+  }
+
+  public void setRefreshedAt(long refreshedAt) {
+    this.refreshedAt = refreshedAt;
+  }
+
+  public long getFullRefreshAt() {
+    return fullRefreshAt;
+  }
+
+  public void setFullRefreshAt(long fullRefreshAt) {
+    this.fullRefreshAt = fullRefreshAt;
+  }
+
+  public Map<String, InventoryProject> getProjects() {
+    return projects;
+  }
+
+  public void setProjects(Map<String, InventoryProject> projects) {
+    this.projects = projects;
+  }
+}
@@ -0,0 +1,43 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions.eventpojos;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * POJO for the cached quota limits of a scanned project, persisted between scans. Limits
+ * are keyed by the project, location and quota metric of their usage series and then by
+ * limit name. FetchedAt holds the epoch second the limits were last fetched.
+ * */
+public class QuotaLimitState {
+  private long fetchedAt;
+  private Map<String, Map<String, Long>> limits = new HashMap<>();
+
+  public long getFetchedAt() {
+    return fetchedAt;
+  }
+
+  public void setFetchedAt(long fetchedAt) {
+    this.fetchedAt = fetchedAt;
+  }
+
+  public Map<String, Map<String, Long>> getLimits() {
+    return limits;
+  }
+
+  public void setLimits(Map<String, Map<String, Long>> limits) {
+    this.limits = limits;
+  }
+}
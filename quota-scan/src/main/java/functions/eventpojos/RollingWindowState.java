@@ -0,0 +1,43 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions.eventpojos;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * POJO for the rolling window state of a scanned project, persisted between scans.
+ * Checkpoints hold the epoch second each query type was last run, buckets hold the
+ * per-series values keyed by bucket index.
+ * */
+public class RollingWindowState {
+  private Map<String, Long> checkpoints = new HashMap<>();
+  private Map<String, Map<Long, Long>> buckets = new HashMap<>();
+
+  public Map<String, Long> getCheckpoints() {
+    return checkpoints;
+  }
+
+  public void setCheckpoints(Map<String, Long> checkpoints) {
+    this.checkpoints = checkpoints;
+  }
+
+  public Map<String, Map<Long, Long>> getBuckets() {
+    return buckets;
+  }
+
+  public void setBuckets(Map<String, Map<Long, Long>> buckets) {
+    this.buckets = buckets;
+  }
+}
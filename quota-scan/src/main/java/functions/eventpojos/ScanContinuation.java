@@ -0,0 +1,89 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions.eventpojos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * POJO for the part of a project scan left when an invocation ran out of time. QueryTypes
+ * lists the queries still to run. The query of resumeQueryType was stopped between pages
+ * and resumes from pageToken with the same query. Hops counts the continuation messages the
+ * scan was handed over in, including this one.
+ * */
+public class ScanContinuation {
+  private String projectId;
+  private List<String> projectIds;
+  private List<String> queryTypes = new ArrayList<>();
+  private String resumeQueryType;
+  private String query;
+  private String pageToken;
+  private int hops;
+
+  public String getProjectId() {
+    return projectId;
+  }
+
+  public void setProjectId(String projectId) {
+    this.projectId = projectId;
+  }
+
+  public List<String> getProjectIds() {
+    return projectIds;
+  }
+
+  public void setProjectIds(List<String> projectIds) {
+    this.projectIds = projectIds;
+  }
+
+  public List<String> getQueryTypes() {
+    return queryTypes;
+  }
+
+  public void setQueryTypes(List<String> queryTypes) {
+    this.queryTypes = queryTypes;
+  }
+
+  public String getResumeQueryType() {
+    return resumeQueryType;
+  }
+
+  public void setResumeQueryType(String resumeQueryType) {
+    this.resumeQueryType = resumeQueryType;
+  }
+
+  public String getQuery() {
+    return query;
+  }
+
+  public void setQuery(String query) {
+    this.query = query;
+  }
+
+  public String getPageToken() {
+    return pageToken;
+  }
+
+  public void setPageToken(String pageToken) {
+    this.pageToken = pageToken;
+  }
+
+  public int getHops() {
+    return hops;
+  }
+
+  public void setHops(int hops) {
+    this.hops = hops;
+  }
+}
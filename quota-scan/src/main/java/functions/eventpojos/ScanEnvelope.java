@@ -0,0 +1,74 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions.eventpojos;
+
+import java.util.List;
+
+/*
+ * POJO for a JSON Pub/Sub message that carries the projects of one scan invocation, either
+ * as a batch of project Ids or as a shard descriptor. A shard covers the projects of the
+ * persisted inventory of the parents that fall in shard shardIndex of shardCount.
+ * Continuations carry the unfinished scans of an invocation that ran out of time.
+ * */
+public class ScanEnvelope {
+  private List<String> projectIds;
+  private List<String> parents;
+  private Integer shardIndex;
+  private Integer shardCount;
+  private List<ScanContinuation> continuations;
+
+  public List<String> getProjectIds() {
+    return projectIds;
+  }
+
+  public void setProjectIds(List<String> projectIds) {
+    this.projectIds = projectIds;
+  }
+
+  public List<String> getParents() {
+    return parents;
+  }
+
+  public void setParents(List<String> parents) {
+    this.parents = parents;
+  }
+
+  public Integer getShardIndex() {
+    return shardIndex;
+  }
+
+  public void setShardIndex(Integer shardIndex) {
+    this.shardIndex = shardIndex;
+  }
+
+  public Integer getShardCount() {
+    return shardCount;
+  }
+
+  public void setShardCount(Integer shardCount) {
+    this.shardCount = shardCount;
+  }
+
+  public List<ScanContinuation> getContinuations() {
+    return continuations;
+  }
+
+  public void setContinuations(List<ScanContinuation> continuations) {
+    this.continuations = continuations;
+  }
+
+  public boolean isShard() {
+    return shardCount != null && shardCount > 0 && shardIndex != null && parents != null;
+  }
+}
@@ -0,0 +1,33 @@
+/*
+Copyright 2023 Google LLC
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package functions.eventpojos;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * POJO for the adaptive scan schedule, persisted between listings. Maps each project Id to
+ * the epoch seconds at which it was last published for a scan.
+ * */
+public class ScanScheduleState {
+  private Map<String, Long> lastScans = new HashMap<>();
+
+  public Map<String, Long> getLastScans() {
+    return lastScans;
+  }
+
+  public void setLastScans(Map<String, Long> lastScans) {
+    this.lastScans = lastScans;
+  }
+}
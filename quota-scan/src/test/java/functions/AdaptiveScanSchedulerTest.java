@@ -0,0 +1,95 @@
+/*
+Copyright 2023 Google LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package functions;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import functions.eventpojos.ScanScheduleState;
+import java.time.Instant;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AdaptiveScanSchedulerTest {
+  private static final int THRESHOLD = 80;
+  // Interval of a project without usage, with the default interval limits
+  private static final long MAX_INTERVAL_SECONDS =
+      AdaptiveScanScheduler.ADAPTIVE_MAX_INTERVAL_MINUTES * 60L;
+
+  private ScanScheduleState state;
+
+  @Before
+  public void setUp() {
+    state = new ScanScheduleState();
+  }
+
+  private void scannedSecondsAgo(String projectId, long seconds) {
+    state.getLastScans().put(projectId, Instant.now().getEpochSecond() - seconds);
+  }
+
+  @Test
+  public void priority_shouldScanNeverScannedProjectFirst() {
+    AdaptiveScanScheduler scheduler = new AdaptiveScanScheduler(Map.of(), state, THRESHOLD);
+
+    assertThat(scheduler.priority("p1")).isEqualTo(Double.MAX_VALUE);
+  }
+
+  @Test
+  public void priority_shouldWaitForIntervalOfProjectWithoutUsage() {
+    scannedSecondsAgo("p1", MAX_INTERVAL_SECONDS / 2);
+    AdaptiveScanScheduler scheduler = new AdaptiveScanScheduler(Map.of(), state, THRESHOLD);
+
+    assertThat(scheduler.priority("p1")).isWithin(0.01).of(0.5);
+  }
+
+  @Test
+  public void priority_shouldBeDueAfterIntervalOfProjectWithoutUsage() {
+    scannedSecondsAgo("p1", MAX_INTERVAL_SECONDS * 2);
+    AdaptiveScanScheduler scheduler = new AdaptiveScanScheduler(Map.of(), state, THRESHOLD);
+
+    assertThat(scheduler.priority("p1")).isWithin(0.01).of(2.0);
+  }
+
+  @Test
+  public void priority_shouldScanProjectAtThresholdOnEveryListing() {
+    scannedSecondsAgo("p1", 60);
+    AdaptiveScanScheduler scheduler =
+        new AdaptiveScanScheduler(Map.of("p1", 95.0), state, THRESHOLD);
+
+    assertThat(scheduler.priority("p1")).isEqualTo(2.0);
+  }
+
+  @Test
+  public void priority_shouldRankProjectNearThresholdFirst() {
+    scannedSecondsAgo("cold", MAX_INTERVAL_SECONDS * 2);
+    scannedSecondsAgo("warm", MAX_INTERVAL_SECONDS * 2);
+    AdaptiveScanScheduler scheduler =
+        new AdaptiveScanScheduler(Map.of("warm", 40.0), state, THRESHOLD);
+
+    assertThat(scheduler.priority("warm")).isGreaterThan(scheduler.priority("cold"));
+  }
+
+  @Test
+  public void priority_shouldScanEveryProjectOftenWithoutConsumptions() {
+    scannedSecondsAgo("p1", 60);
+    AdaptiveScanScheduler scheduler = new AdaptiveScanScheduler(null, state, THRESHOLD);
+
+    assertThat(scheduler.priority("p1")).isEqualTo(2.0);
+  }
+}
@@ -0,0 +1,74 @@
+/*
+Copyright 2023 Google LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package functions;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ListProjectsTest {
+
+  @Test
+  public void groupProjectIds_shouldSplitIntoMessagesOfBatchSize() {
+    List<String> messages =
+        ListProjects.groupProjectIds(List.of("p1", "p2", "p3", "p4", "p5"), 2);
+
+    assertThat(messages).containsExactly("p1,p2", "p3,p4", "p5").inOrder();
+  }
+
+  @Test
+  public void groupProjectIds_shouldSendOneIdPerMessageWithoutBatchSize() {
+    List<String> messages = ListProjects.groupProjectIds(List.of("p1", "p2"), 0);
+
+    assertThat(messages).containsExactly("p1", "p2").inOrder();
+  }
+
+  @Test
+  public void groupProjectIds_shouldKeepAllIdsInOneMessageWhenBatchIsLarger() {
+    List<String> messages = ListProjects.groupProjectIds(List.of("p1", "p2", "p3"), 100);
+
+    assertThat(messages).containsExactly("p1,p2,p3");
+  }
+
+  @Test
+  public void groupProjectIds_shouldReturnNoMessageForNoIds() {
+    assertThat(ListProjects.groupProjectIds(Collections.emptyList(), 10)).isEmpty();
+  }
+
+  @Test
+  public void splitByShard_shouldGroupIdsByTheirShardInListingOrder() {
+    List<String> projectIds = List.of("p1", "p2", "p3", "p4");
+
+    Map<Integer, List<String>> shards = ListProjects.splitByShard(projectIds);
+
+    int total = 0;
+    for (Map.Entry<Integer, List<String>> shard : shards.entrySet()) {
+      for (String projectId : shard.getValue()) {
+        assertThat(ShardRing.shardOf(projectId, ShardRing.SHARD_COUNT)).isEqualTo(shard.getKey());
+      }
+      assertThat(shard.getValue()).isInOrder(
+          (a, b) -> projectIds.indexOf(a) - projectIds.indexOf(b));
+      total += shard.getValue().size();
+    }
+    assertThat(total).isEqualTo(projectIds.size());
+  }
+}
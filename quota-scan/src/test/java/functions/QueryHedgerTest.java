@@ -0,0 +1,79 @@
+/*
+Copyright 2023 Google LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package functions;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import functions.QueryHedger.LatencyWindow;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class QueryHedgerTest {
+
+  private static LatencyWindow window(int capacity, int samples) {
+    LatencyWindow window = new LatencyWindow(capacity);
+    for (int i = 1; i <= samples; i++) {
+      window.record(i);
+    }
+    return window;
+  }
+
+  @Test
+  public void percentile_shouldBeUnknownUntilEnoughLatencies() {
+    assertThat(window(1000, 49).percentile(95)).isEqualTo(-1);
+  }
+
+  @Test
+  public void percentile_shouldPickLatencyOfRank() {
+    LatencyWindow window = window(1000, 100);
+
+    assertThat(window.percentile(95)).isEqualTo(95);
+    assertThat(window.percentile(50)).isEqualTo(50);
+    assertThat(window.percentile(100)).isEqualTo(100);
+    assertThat(window.percentile(0)).isEqualTo(1);
+  }
+
+  @Test
+  public void percentile_shouldOnlyKeepLatestLatencies() {
+    LatencyWindow window = window(50, 100);
+
+    assertThat(window.percentile(0)).isEqualTo(51);
+    assertThat(window.percentile(100)).isEqualTo(100);
+  }
+
+  @Test
+  public void percentile_shouldFollowNewLatenciesAfterSortInterval() {
+    LatencyWindow window = window(50, 50);
+    assertThat(window.percentile(100)).isEqualTo(50);
+
+    for (int i = 0; i < 50; i++) {
+      window.record(1000);
+    }
+
+    assertThat(window.percentile(0)).isEqualTo(1000);
+  }
+
+  @Test
+  public void isWithinHedgeShare_shouldCapHedgesToShareOfQueries() {
+    // The default cap is 5 hedges per 100 queries
+    assertThat(QueryHedger.isWithinHedgeShare(0, 19)).isFalse();
+    assertThat(QueryHedger.isWithinHedgeShare(0, 20)).isTrue();
+    assertThat(QueryHedger.isWithinHedgeShare(4, 100)).isTrue();
+    assertThat(QueryHedger.isWithinHedgeShare(5, 100)).isFalse();
+  }
+}
@@ -0,0 +1,59 @@
+/*
+Copyright 2023 Google LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package functions;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import functions.ScanProjectQuotasHelper.QueryType;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class QuotaLimitCacheTest {
+  private static final String PER_MINUTE = "ReadRequestsPerMinutePerProject";
+  private static final String PER_DAY = "ReadRequestsPerDayPerProject";
+  private static final String QPD = "DefaultRequestsQpdPerProject";
+  private static final String EGRESS = "GoogleEgressBandwidth-per-second-per-region";
+
+  @Test
+  public void appliesTo_shouldJoinRateLimitsWithPerMinuteUsage() {
+    assertThat(QuotaLimitCache.appliesTo(QueryType.QPM, PER_MINUTE)).isTrue();
+    assertThat(QuotaLimitCache.appliesTo(QueryType.QPM, PER_DAY)).isFalse();
+    assertThat(QuotaLimitCache.appliesTo(QueryType.QPM, QPD)).isFalse();
+    assertThat(QuotaLimitCache.appliesTo(QueryType.QPM, EGRESS)).isFalse();
+  }
+
+  @Test
+  public void appliesTo_shouldJoinDailyLimitsWithPerDayUsage() {
+    assertThat(QuotaLimitCache.appliesTo(QueryType.QPD, PER_DAY)).isTrue();
+    assertThat(QuotaLimitCache.appliesTo(QueryType.QPD, QPD)).isTrue();
+    assertThat(QuotaLimitCache.appliesTo(QueryType.QPD, PER_MINUTE)).isFalse();
+  }
+
+  @Test
+  public void appliesTo_shouldJoinBandwidthLimitsWithPerSecondUsage() {
+    assertThat(QuotaLimitCache.appliesTo(QueryType.QPS, EGRESS)).isTrue();
+    assertThat(QuotaLimitCache.appliesTo(QueryType.QPS, "EGRESS-BANDWIDTH-per-project")).isTrue();
+    assertThat(QuotaLimitCache.appliesTo(QueryType.QPS, PER_MINUTE)).isFalse();
+  }
+
+  @Test
+  public void appliesTo_shouldJoinEveryLimitWithAllocationUsage() {
+    assertThat(QuotaLimitCache.appliesTo(QueryType.ALLOCATION, PER_MINUTE)).isTrue();
+    assertThat(QuotaLimitCache.appliesTo(QueryType.ALLOCATION, EGRESS)).isTrue();
+  }
+}
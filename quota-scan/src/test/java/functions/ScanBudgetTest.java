@@ -0,0 +1,97 @@
+/*
+Copyright 2023 Google LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package functions;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import functions.ScanProjectQuotasHelper.QueryType;
+import functions.ScanProjectQuotasHelper.Quotas;
+import functions.eventpojos.GCPProject;
+import functions.eventpojos.ScanContinuation;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ScanBudgetTest {
+
+  private static GCPProject project(String... pendingQueryTypes) {
+    GCPProject gcpProject = new GCPProject();
+    gcpProject.setProjectId("p1");
+    if (pendingQueryTypes.length > 0) {
+      ScanContinuation continuation = ScanBudget.continuationOf(gcpProject);
+      continuation.getQueryTypes().addAll(List.of(pendingQueryTypes));
+      gcpProject.setContinuation(continuation);
+    }
+    return gcpProject;
+  }
+
+  @Test
+  public void isPending_shouldRunEveryQueryOfNewScan() {
+    GCPProject gcpProject = project();
+
+    for (QueryType queryType : QueryType.values()) {
+      assertThat(ScanBudget.isPending(gcpProject, queryType)).isTrue();
+    }
+    assertThat(ScanBudget.isPending(gcpProject, Quotas.ALLOCATION)).isTrue();
+    assertThat(ScanBudget.isPending(gcpProject, Quotas.RATE)).isTrue();
+  }
+
+  @Test
+  public void isPending_shouldOnlyRunQueriesLeftOfContinuation() {
+    GCPProject gcpProject = project(QueryType.QPD.name());
+
+    assertThat(ScanBudget.isPending(gcpProject, QueryType.QPD)).isTrue();
+    assertThat(ScanBudget.isPending(gcpProject, QueryType.QPM)).isFalse();
+    assertThat(ScanBudget.isPending(gcpProject, QueryType.ALLOCATION)).isFalse();
+    assertThat(ScanBudget.isPending(gcpProject, Quotas.RATE)).isTrue();
+    assertThat(ScanBudget.isPending(gcpProject, Quotas.ALLOCATION)).isFalse();
+  }
+
+  @Test
+  public void continuationOf_shouldCountHopsOfResumedScan() {
+    GCPProject gcpProject = project(QueryType.QPD.name());
+
+    assertThat(gcpProject.getContinuation().getHops()).isEqualTo(1);
+    assertThat(ScanBudget.continuationOf(gcpProject).getHops()).isEqualTo(2);
+  }
+
+  @Test
+  public void defer_shouldDropContinuationAfterMaxHops() {
+    ScanBudget budget = new ScanBudget(System.nanoTime());
+    ScanContinuation continuation = ScanBudget.continuationOf(project());
+
+    continuation.setHops(ScanBudget.SCAN_MAX_CONTINUATIONS);
+    assertThat(budget.defer(continuation)).isTrue();
+    continuation.setHops(ScanBudget.SCAN_MAX_CONTINUATIONS + 1);
+    assertThat(budget.defer(continuation)).isFalse();
+  }
+
+  @Test
+  public void isExpired_shouldFollowDeadline() {
+    long now = System.nanoTime();
+
+    assertThat(new ScanBudget(now - 1).isExpired()).isTrue();
+    assertThat(new ScanBudget(now + TimeUnit.MINUTES.toNanos(1)).isExpired()).isFalse();
+  }
+
+  @Test
+  public void start_shouldNotBudgetScansWithoutTimeout() {
+    assertThat(ScanBudget.start()).isNull();
+  }
+}
@@ -0,0 +1,55 @@
+/*
+Copyright 2023 Google LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package functions;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ScanProjectQuotasTest {
+
+  @Test
+  public void getProjectIds_shouldSplitCommaSeparatedIds() {
+    assertThat(ScanProjectQuotas.getProjectIds(" p1, p2,,p3 "))
+        .containsExactly("p1", "p2", "p3")
+        .inOrder();
+  }
+
+  @Test
+  public void getProjectIds_shouldReadSingleId() {
+    assertThat(ScanProjectQuotas.getProjectIds("p1")).containsExactly("p1");
+  }
+
+  @Test
+  public void getProjectIds_shouldReadIdsOfEnvelope() {
+    assertThat(ScanProjectQuotas.getProjectIds("{\"projectIds\":[\"p1\",\"p2\"]}"))
+        .containsExactly("p1", "p2")
+        .inOrder();
+  }
+
+  @Test
+  public void getProjectIds_shouldReadNoIdsFromEnvelopeWithoutIds() {
+    assertThat(ScanProjectQuotas.getProjectIds("{\"continuations\":[]}")).isEmpty();
+  }
+
+  @Test
+  public void getProjectIds_shouldReadNoIdsFromInvalidEnvelope() {
+    assertThat(ScanProjectQuotas.getProjectIds("{\"projectIds\":[\"p1\"")).isEmpty();
+  }
+}
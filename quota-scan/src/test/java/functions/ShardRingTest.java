@@ -0,0 +1,87 @@
+/*
+Copyright 2023 Google LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package functions;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ShardRingTest {
+  private static final int PROJECTS = 2000;
+
+  private static List<String> projectIds() {
+    List<String> projectIds = new ArrayList<>();
+    for (int i = 0; i < PROJECTS; i++) {
+      projectIds.add("project-" + i);
+    }
+    return projectIds;
+  }
+
+  @Test
+  public void shardOf_shouldUseOneShardWithoutSharding() {
+    assertThat(ShardRing.shardOf("project-1", 0)).isEqualTo(0);
+    assertThat(ShardRing.shardOf("project-1", 1)).isEqualTo(0);
+  }
+
+  @Test
+  public void shardOf_shouldBeStableAndInRange() {
+    for (String projectId : projectIds()) {
+      int shard = ShardRing.shardOf(projectId, 4);
+      assertThat(shard).isAtLeast(0);
+      assertThat(shard).isLessThan(4);
+      assertThat(ShardRing.shardOf(projectId, 4)).isEqualTo(shard);
+    }
+  }
+
+  @Test
+  public void shardOf_shouldSpreadProjectsOverShards() {
+    int[] counts = new int[4];
+    for (String projectId : projectIds()) {
+      counts[ShardRing.shardOf(projectId, 4)]++;
+    }
+    for (int count : counts) {
+      assertThat(count).isGreaterThan(PROJECTS / 8);
+    }
+  }
+
+  @Test
+  public void shardOf_shouldOnlyMoveProjectsToTheAddedShard() {
+    int moved = 0;
+    for (String projectId : projectIds()) {
+      int before = ShardRing.shardOf(projectId, 4);
+      int after = ShardRing.shardOf(projectId, 5);
+      if (before != after) {
+        assertThat(after).isEqualTo(4);
+        moved++;
+      }
+    }
+    // About 1/5 of the projects move to the new shard
+    assertThat(moved).isGreaterThan(PROJECTS / 10);
+    assertThat(moved).isLessThan(PROJECTS * 3 / 10);
+  }
+
+  @Test
+  public void ownedProjectIds_shouldKeepAllIdsWithoutSharding() {
+    List<String> projectIds = projectIds();
+
+    assertThat(ShardRing.ownedProjectIds(projectIds)).isEqualTo(projectIds);
+  }
+}
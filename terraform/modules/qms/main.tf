@@ -56,7 +56,8 @@ module "project-services" {
     "cloudscheduler.googleapis.com",
     "cloudfunctions.googleapis.com",
     "cloudbuild.googleapis.com",
-    "bigquerydatatransfer.googleapis.com"
+    "bigquerydatatransfer.googleapis.com",
+    "cloudasset.googleapis.com"
   ]
   depends_on = [module.project-service-cloudresourcemanager]
 }
@@ -89,7 +90,7 @@ resource "google_cloud_scheduler_job" "job" {
   http_target {
     http_method = "POST"
     uri         = google_cloudfunctions_function.function-listProjects.https_trigger_url
-    body        = base64encode("{\"organizations\":\"${var.organizations}\",\"threshold\":\"${var.threshold}\",\"projectId\":\"${var.project_id}\"}")
+    body        = base64encode("{\"organizations\":\"${var.organizations}\",\"folders\":\"${var.folders}\",\"threshold\":\"${var.threshold}\",\"projectId\":\"${var.project_id}\"}")
 
     oidc_token {
       service_account_email = var.service_account_email
@@ -128,6 +129,15 @@ resource "google_storage_bucket" "bucket_gcf_source" {
   uniform_bucket_level_access = "true"
 }
 
+# Bucket to persist scan state between Cloud Function invocations
+resource "google_storage_bucket" "bucket_scan_state" {
+  name                        = "${var.project_id}-qms-scan-state"
+  storage_class               = "REGIONAL"
+  location                    = local.expanded_region
+  force_destroy               = "true"
+  uniform_bucket_level_access = "true"
+}
+
 data "archive_file" "local_source_code_zip" {
   count = local.use_github_release ? 0 : 1
 
@@ -178,6 +188,29 @@ resource "google_cloudfunctions_function" "function-listProjects" {
   environment_variables = {
     PUBLISH_TOPIC = google_pubsub_topic.topic_alert_project_id.name
     HOME_PROJECT  = var.project_id
+    PROJECT_BATCH_SIZE = var.project_batch_size
+    STREAMING_LIST = var.streaming_list
+    HIERARCHY_TRAVERSAL = var.hierarchy_traversal
+    TRAVERSAL_PARALLELISM = var.traversal_parallelism
+    INVENTORY_CACHE = var.inventory_cache
+    INVENTORY_FULL_REFRESH_HOURS = var.inventory_full_refresh_hours
+    SCAN_STATE_BUCKET = google_storage_bucket.bucket_scan_state.name
+    SCAN_LIFECYCLE_STATES = var.scan_lifecycle_states
+    SCAN_LABEL_INCLUDE = var.scan_label_include
+    SCAN_LABEL_EXCLUDE = var.scan_label_exclude
+    ZERO_SERIES_CACHE_HOURS = var.zero_series_cache_hours
+    MESSAGE_ENVELOPE = var.message_envelope
+    SHARD_MESSAGES = var.shard_messages
+    SHARD_COUNT = var.shard_count
+    ADAPTIVE_SCAN = var.adaptive_scan
+    ADAPTIVE_MIN_INTERVAL_MINUTES = var.adaptive_min_interval_minutes
+    ADAPTIVE_MAX_INTERVAL_MINUTES = var.adaptive_max_interval_minutes
+    SCAN_QUERY_BUDGET = var.scan_query_budget
+    CONSUMPTION_LOOKBACK_HOURS = var.consumption_lookback_hours
+    BIG_QUERY_TABLE_PARTITION = var.big_query_table_partition
+    THRESHOLD = var.threshold
+    BIG_QUERY_DATASET = var.big_query_dataset_id
+    BIG_QUERY_TABLE = var.big_query_table_id
   }
 }
 
@@ -217,6 +250,34 @@ resource "google_cloudfunctions_function" "function-scanProject" {
     THRESHOLD          = var.threshold
     BIG_QUERY_DATASET  = var.big_query_dataset_id
     BIG_QUERY_TABLE    = var.big_query_table_id
+    QUERY_CHANNEL_POOL_SIZE = var.query_channel_pool_size
+    ASYNC_SCAN = var.async_scan
+    BIG_QUERY_BATCH_MAX_ROWS = var.big_query_batch_max_rows
+    BIG_QUERY_SINK = var.big_query_sink
+    STORAGE_WRITE_STREAM = var.storage_write_stream
+    METRICS_SCOPE_PROJECT = var.metrics_scope_project
+    REDUCED_RESOLUTION_QUERIES = var.reduced_resolution_queries
+    INCREMENTAL_SCAN = var.incremental_scan
+    SCAN_STATE_BUCKET = google_storage_bucket.bucket_scan_state.name
+    MONITORING_QUERY_RATE = var.monitoring_query_rate
+    BIG_QUERY_INSERT_RATE = var.big_query_insert_rate
+    RETRY_MAX_ATTEMPTS = var.retry_max_attempts
+    ZERO_SERIES_CACHE_HOURS = var.zero_series_cache_hours
+    SCAN_CONCURRENCY = var.scan_concurrency
+    SCAN_LIFECYCLE_STATES = var.scan_lifecycle_states
+    SCAN_LABEL_INCLUDE = var.scan_label_include
+    SCAN_LABEL_EXCLUDE = var.scan_label_exclude
+    LIMIT_CACHE_TTL_HOURS = var.limit_cache_ttl_hours
+    FUNCTION_TIMEOUT_SEC = var.cloud_function_scan_project_timeout
+    SCAN_BUDGET_MARGIN_SEC = var.scan_budget_margin_sec
+    SCAN_MAX_CONTINUATIONS = var.scan_max_continuations
+    PUBLISH_TOPIC = google_pubsub_topic.topic_alert_project_id.name
+    HOME_PROJECT  = var.project_id
+    HEDGE_QUERIES = var.hedge_queries
+    HEDGE_PERCENTILE = var.hedge_percentile
+    HEDGE_MAX_PERCENT = var.hedge_max_percent
+    SHARD_COUNT = var.shard_count
+    SHARD_INDEX = var.shard_index
   }
 }
 
@@ -172,6 +172,228 @@ variable "cloud_function_scan_project_timeout" {
   default     = 540
 }
 
+variable "query_channel_pool_size" {
+  description = "Value of the number of gRPC channels kept by the Cloud Function to scan Project quotas for Cloud Monitoring queries"
+  type        = number
+  default     = 1
+}
+
+variable "async_scan" {
+  description = "Whether the Cloud Function to scan Project quotas issues the Allocation, QPM, QPD and QPS queries concurrently"
+  type        = bool
+  default     = false
+}
+
+variable "big_query_batch_max_rows" {
+  description = "Value of the maximum number of rows the Cloud Function to scan Project quotas sends in one BigQuery insert request"
+  type        = number
+  default     = 500
+}
+
+variable "big_query_sink" {
+  description = "Value of the sink the Cloud Function to scan Project quotas writes rows with: insert_all (streaming inserts) or storage_write (BigQuery Storage Write API)"
+  type        = string
+  default     = "insert_all"
+}
+
+variable "storage_write_stream" {
+  description = "Value of the BigQuery Storage Write API stream used when big_query_sink is storage_write: default or committed"
+  type        = string
+  default     = "default"
+}
+
+variable "metrics_scope_project" {
+  description = "Value of the metrics scope host Project Id whose scope includes the scanned projects. When set, batches of projects are scanned with one set of queries"
+  type        = string
+  default     = ""
+}
+
+variable "project_batch_size" {
+  description = "Value of the number of Project Ids the Cloud Function to list Project Ids publishes per message"
+  type        = number
+  default     = 1
+}
+
+variable "reduced_resolution_queries" {
+  description = "Whether the Cloud Function to scan Project quotas uses queries that return one point per series and only the labels it reads"
+  type        = bool
+  default     = false
+}
+
+variable "incremental_scan" {
+  description = "Whether the Cloud Function to scan Project quotas keeps rolling window state and only queries the data since its last scan"
+  type        = bool
+  default     = false
+}
+
+variable "monitoring_query_rate" {
+  description = "Cloud Monitoring queries per second allowed from one instance of the Cloud Function to scan Project quotas, reduced automatically when throttled"
+  type        = number
+  default     = 10
+}
+
+variable "big_query_insert_rate" {
+  description = "BigQuery insertAll requests per second allowed from one instance of the Cloud Function to scan Project quotas, reduced automatically when throttled"
+  type        = number
+  default     = 50
+}
+
+variable "retry_max_attempts" {
+  description = "Attempts of a throttled or failed Cloud Monitoring query or BigQuery insert, including the first one"
+  type        = number
+  default     = 4
+}
+
+variable "streaming_list" {
+  description = "Whether the Cloud Function to list projects publishes the project Ids of each page while fetching the next one"
+  type        = bool
+  default     = false
+}
+
+variable "hierarchy_traversal" {
+  description = "Whether the Cloud Function to list projects walks the configured organizations and folders instead of listing every project the service account can see"
+  type        = bool
+  default     = false
+}
+
+variable "traversal_parallelism" {
+  description = "Concurrent folder and project list requests while walking the organizations and folders"
+  type        = number
+  default     = 8
+}
+
+variable "inventory_cache" {
+  description = "Whether the Cloud Function to list projects keeps a project inventory of the configured organizations and folders and refreshes it incrementally with Cloud Asset Inventory"
+  type        = bool
+  default     = false
+}
+
+variable "inventory_full_refresh_hours" {
+  description = "Hours between full refreshes of the project inventory, which bound how long projects moved out of the parents or purged stay in it"
+  type        = number
+  default     = 24
+}
+
+variable "scan_lifecycle_states" {
+  description = "Comma separated lifecycle states of the projects to scan"
+  type        = string
+  default     = "ACTIVE"
+}
+
+variable "scan_label_include" {
+  description = "Comma separated label rules (key or key=value) a project must match one of to be scanned, empty to scan all projects"
+  type        = string
+  default     = ""
+}
+
+variable "scan_label_exclude" {
+  description = "Comma separated label rules (key or key=value) of projects to skip"
+  type        = string
+  default     = ""
+}
+
+variable "zero_series_cache_hours" {
+  description = "Hours a project whose last scan returned no time series is skipped, 0 to disable"
+  type        = number
+  default     = 0
+}
+
+variable "message_envelope" {
+  description = "Publish batches of project Ids as JSON envelopes instead of comma separated Ids"
+  type        = bool
+  default     = false
+}
+
+variable "shard_messages" {
+  description = "Shard descriptors of the project inventory published instead of project Ids, 0 to publish Ids. Requires inventory_cache"
+  type        = number
+  default     = 0
+}
+
+variable "scan_concurrency" {
+  description = "Projects of a Pub/Sub message scanned at the same time"
+  type        = number
+  default     = 4
+}
+
+variable "shard_count" {
+  description = "Scanner shards the project Ids are split into, each message carries a shard attribute for subscription filters. 0 or 1 to disable"
+  type        = number
+  default     = 1
+}
+
+variable "shard_index" {
+  description = "Shard of the project Ids scanned by the scan function, from 0 to shard_count - 1. Deploy one scan function per shard when shard_count is above 1"
+  type        = number
+  default     = 0
+}
+
+variable "adaptive_scan" {
+  description = "Publish each project at an interval that follows its last consumption instead of on every run. Run the scheduler at least as often as adaptive_min_interval_minutes"
+  type        = bool
+  default     = false
+}
+
+variable "adaptive_min_interval_minutes" {
+  description = "Scan interval of a project at the alert threshold, 0 to scan it on every run"
+  type        = number
+  default     = 0
+}
+
+variable "adaptive_max_interval_minutes" {
+  description = "Scan interval of a project without quota usage"
+  type        = number
+  default     = 360
+}
+
+variable "scan_query_budget" {
+  description = "Monitoring queries a run may schedule with adaptive scans, 0 for no limit"
+  type        = number
+  default     = 0
+}
+
+variable "consumption_lookback_hours" {
+  description = "Hours of scan results the consumption of a project is read from"
+  type        = number
+  default     = 24
+}
+
+variable "limit_cache_ttl_hours" {
+  description = "Hours quota limits are cached in the state bucket before they are fetched again, 0 joins the limits in every scan query"
+  type        = number
+  default     = 0
+}
+
+variable "scan_budget_margin_sec" {
+  description = "Seconds a scan keeps before the function timeout to load results and publish a continuation for the rest"
+  type        = number
+  default     = 60
+}
+
+variable "scan_max_continuations" {
+  description = "Continuation messages a partial scan of a project can be handed over in before the rest of it is dropped"
+  type        = number
+  default     = 10
+}
+
+variable "hedge_queries" {
+  description = "Send a duplicate of Cloud Monitoring queries slower than the hedge percentile latency and use the first answer"
+  type        = bool
+  default     = false
+}
+
+variable "hedge_percentile" {
+  description = "Latency percentile of a query type after which its queries are hedged"
+  type        = number
+  default     = 95
+}
+
+variable "hedge_max_percent" {
+  description = "Hedged queries allowed per 100 Cloud Monitoring queries"
+  type        = number
+  default     = 5
+}
+
 variable "cloud_function_notification_project" {
   description = "Value of the Name for the Cloud Function to send quota alerts"
   type        = string